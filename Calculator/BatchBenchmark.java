@@ -0,0 +1,103 @@
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how {@link BatchEvaluator} scales with cores. It evaluates one
+ * formula over random columns with pools of 1, 2, 4, ... threads up to the
+ * number of available processors, and reports the time, rows per second
+ * and speedup over one thread for each. Every run's output is compared
+ * with the sequential result, which must match to the bit.
+ * <p>
+ * Options: {@code --rows=N} (default 20000000), {@code --grain=N} rows per
+ * task (default {@link BatchEvaluator#DEFAULT_GRAIN}), {@code --threads=N}
+ * for the largest pool (default the available processors), {@code --runs=N}
+ * timed runs per pool size, best kept (default 5), and
+ * {@code --expression=TEXT} over the variables {@code x}, {@code y} and
+ * {@code rate}.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class BatchBenchmark {
+
+    /**
+     * The main method that runs the benchmark.
+     *
+     * @param args Command-line options, see above.
+     */
+    public static void main(String[] args) {
+        int rows = 20_000_000;
+        int grain = BatchEvaluator.DEFAULT_GRAIN;
+        int runs = 5;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        String text = "rate * x + sqrt(abs(y)) - sin(x) / (rate + 1) + y ^ 2 % 7";
+        for (String arg : args) {
+            if (arg.startsWith("--rows=")) {
+                rows = Integer.parseInt(arg.substring("--rows=".length()));
+            } else if (arg.startsWith("--grain=")) {
+                grain = Integer.parseInt(arg.substring("--grain=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                maxThreads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(arg.substring("--runs=".length()));
+            } else if (arg.startsWith("--expression=")) {
+                text = arg.substring("--expression=".length());
+            } else {
+                System.err.println("Usage: java BatchBenchmark [--rows=N] [--grain=N] [--threads=N] [--runs=N] [--expression=TEXT]");
+                return;
+            }
+        }
+
+        Expression expression = Calculator.compile(text);
+        double[][] columns = columns(expression, rows, new Random(1));
+        double[] expected = new double[rows];
+        expression.evaluate(columns, expected);
+        double[] out = new double[rows];
+
+        System.out.printf(Locale.ROOT, "%s over %d rows, grain %d, %d available processors%n",
+                expression, rows, grain, Runtime.getRuntime().availableProcessors());
+        System.out.printf(Locale.ROOT, "%-8s %10s %12s %8s%n", "threads", "ms", "Mrows/s", "speedup");
+        double single = 0;
+        for (int threads = 1; threads <= maxThreads; threads = threads == maxThreads ? threads + 1
+                : Math.min(threads * 2, maxThreads)) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            BatchEvaluator evaluator = new BatchEvaluator(pool, grain);
+            long best = Long.MAX_VALUE;
+            // The first run warms up the JIT and the pool and is not counted.
+            for (int run = 0; run <= runs; run++) {
+                long start = System.nanoTime();
+                evaluator.evaluate(expression, columns, out);
+                long nanos = System.nanoTime() - start;
+                if (run > 0) {
+                    best = Math.min(best, nanos);
+                }
+            }
+            pool.shutdown();
+            check(expected, out);
+            if (threads == 1) {
+                single = best;
+            }
+            System.out.printf(Locale.ROOT, "%-8d %10.1f %12.1f %8.2f%n",
+                    threads, best / 1e6, rows * 1e3 / best, single / best);
+        }
+    }
+
+    private static double[][] columns(Expression expression, int rows, Random random) {
+        double[][] columns = new double[expression.getVariables().size()][rows];
+        for (double[] column : columns) {
+            for (int i = 0; i < rows; i++) {
+                column[i] = random.nextGaussian() * 100;
+            }
+        }
+        return columns;
+    }
+
+    private static void check(double[] expected, double[] out) {
+        for (int i = 0; i < expected.length; i++) {
+            if (Double.doubleToRawLongBits(expected[i]) != Double.doubleToRawLongBits(out[i])) {
+                throw new IllegalStateException("Row " + i + " differs: " + expected[i] + " vs " + out[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates compiled expressions over large batches of rows on several
+ * cores. The rows are split in halves, recursively, into fork-join tasks
+ * of at most the grain size, and each task evaluates its rows with the
+ * expression's columnar {@link Expression#evaluate(double[][], double[],
+ * int, int)} path. Tasks write disjoint ranges of the output, so they
+ * share nothing but the read-only inputs and the immutable expression.
+ * <p>
+ * The grain trades scheduling overhead against load balance: each task
+ * costs a few microseconds to fork and steal, so it should take much
+ * longer than that, yet there should be several tasks per core so idle
+ * workers can steal from busy ones.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class BatchEvaluator {
+    /** The default rows per task. */
+    public static final int DEFAULT_GRAIN = 16 * 1024;
+
+    private final ForkJoinPool pool;
+    private final int grain;
+
+    /**
+     * Creates an evaluator on the common fork-join pool with the default
+     * grain.
+     */
+    public BatchEvaluator() {
+        this(ForkJoinPool.commonPool(), DEFAULT_GRAIN);
+    }
+
+    /**
+     * Creates an evaluator.
+     *
+     * @param pool  The pool to run tasks on.
+     * @param grain The most rows evaluated by one task.
+     * @throws IllegalArgumentException If the grain is not positive.
+     */
+    public BatchEvaluator(ForkJoinPool pool, int grain) {
+        if (grain < 1) {
+            throw new IllegalArgumentException("Grain must be at least 1");
+        }
+        this.pool = pool;
+        this.grain = grain;
+    }
+
+    /**
+     * Evaluates an expression for every row of a batch, in parallel.
+     *
+     * @param expression The text of the expression, compiled through
+     *                   {@link Calculator#compile(String)}'s cache.
+     * @param columns    The values of each variable, one column per variable.
+     * @param out        Receives the result for each row.
+     * @throws IllegalArgumentException If the expression is malformed or a
+     *                                  column is missing or too short.
+     * @throws ArithmeticException      On division or modulo by zero in any row.
+     */
+    public void evaluate(String expression, double[][] columns, double[] out) {
+        evaluate(Calculator.compile(expression), columns, out);
+    }
+
+    /**
+     * Evaluates a compiled expression for every row of a batch, in parallel.
+     * The results are the same as those of a sequential evaluation.
+     *
+     * @param expression The expression.
+     * @param columns    The values of each variable, one column per
+     *                   variable in the order of {@link Expression#getVariables()}.
+     * @param out        Receives the result for each row.
+     * @throws IllegalArgumentException If a column is missing or too short.
+     * @throws ArithmeticException      On division or modulo by zero in any row.
+     */
+    public void evaluate(Expression expression, double[][] columns, double[] out) {
+        expression.checkBatch(columns, out, 0, out.length);
+        if (out.length <= grain) {
+            expression.run(columns, out, 0, out.length);
+            return;
+        }
+        pool.invoke(new Task(expression, columns, out, 0, out.length));
+    }
+
+    /**
+     * Gets the most rows one task evaluates.
+     *
+     * @return The grain.
+     */
+    public int getGrain() {
+        return grain;
+    }
+
+    /**
+     * A range of rows: evaluated directly if it is within the grain, and
+     * otherwise split in two.
+     */
+    private final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Expression expression;
+        private final double[][] columns;
+        private final double[] out;
+        private final int from;
+        private final int to;
+
+        Task(Expression expression, double[][] columns, double[] out, int from, int to) {
+            this.expression = expression;
+            this.columns = columns;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                expression.run(columns, out, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Task(expression, columns, out, from, middle),
+                    new Task(expression, columns, out, middle, to));
+        }
+    }
+}
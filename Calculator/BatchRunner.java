@@ -0,0 +1,213 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates a stream of expressions, one per line, and writes one line of
+ * output for each: the result, formatted as in the calculator, or
+ * {@code Error: } and the message if the line cannot be evaluated. Blank
+ * lines are copied as blank lines, so output line N always belongs to input
+ * line N. Lines are expressions only; calculator commands such as
+ * {@code help} or {@code M+} are errors.
+ * <p>
+ * Lines are read and written in chunks. With one thread each chunk is
+ * evaluated as it is read. With more, chunks are evaluated on a pool of
+ * that many threads while the caller's thread keeps reading, and are
+ * written in input order as they complete; at most a few chunks per thread
+ * are in flight, so memory stays bounded however long the input is.
+ * <p>
+ * Every line is compiled on its own rather than through the calculator's
+ * cache, since a large input rarely repeats a line and threads would
+ * otherwise contend on the cache's lock.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public final class BatchRunner {
+    /** The default lines per chunk. */
+    public static final int DEFAULT_CHUNK = 4096;
+
+    private final int threads;
+    private final int chunk;
+    private final DecimalEvaluator decimal;
+
+    /**
+     * Creates a runner that evaluates in double with the default chunk.
+     *
+     * @param threads The threads to evaluate on; 1 evaluates on the
+     *                caller's thread.
+     * @throws IllegalArgumentException If there are no threads.
+     */
+    public BatchRunner(int threads) {
+        this(threads, DEFAULT_CHUNK, null);
+    }
+
+    /**
+     * Creates a runner.
+     *
+     * @param threads The threads to evaluate on; 1 evaluates on the
+     *                caller's thread.
+     * @param chunk   The lines read, evaluated and written together.
+     * @param decimal The evaluator for decimal results, or null to evaluate
+     *                in double.
+     * @throws IllegalArgumentException If there are no threads or the chunk
+     *                                  is not positive.
+     */
+    public BatchRunner(int threads, int chunk, DecimalEvaluator decimal) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        if (chunk < 1) {
+            throw new IllegalArgumentException("Chunk must be at least 1");
+        }
+        this.threads = threads;
+        this.chunk = chunk;
+        this.decimal = decimal;
+    }
+
+    /**
+     * Evaluates every line of the input and writes the results. The output
+     * is flushed, but neither stream is closed.
+     *
+     * @param in  The expressions, one per line.
+     * @param out Receives one line per input line.
+     * @return The number of lines that could not be evaluated.
+     * @throws IOException If reading or writing fails.
+     */
+    public long run(BufferedReader in, Writer out) throws IOException {
+        long errors = threads == 1 ? runSequential(in, out) : runParallel(in, out);
+        out.flush();
+        return errors;
+    }
+
+    private long runSequential(BufferedReader in, Writer out) throws IOException {
+        DoubleFormatter formatter = new DoubleFormatter();
+        StringBuilder text = new StringBuilder();
+        long errors = 0;
+        for (Chunk next = read(in); next != null; next = read(in)) {
+            text.setLength(0);
+            errors += next.evaluate(formatter, text);
+            out.append(text);
+        }
+        return errors;
+    }
+
+    private long runParallel(BufferedReader in, Writer out) throws IOException {
+        AtomicInteger created = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "calculator-batch-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ThreadLocal<DoubleFormatter> formatters = ThreadLocal.withInitial(DoubleFormatter::new);
+        ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+        long errors = 0;
+        try {
+            for (Chunk next = read(in); next != null; next = read(in)) {
+                Chunk submitted = next;
+                pending.add(pool.submit(() -> {
+                    submitted.text = new StringBuilder(submitted.count * 16);
+                    submitted.errors = submitted.evaluate(formatters.get(), submitted.text);
+                    return submitted;
+                }));
+                if (pending.size() >= threads * 4) {
+                    errors += write(pending.remove(), out);
+                }
+            }
+            while (!pending.isEmpty()) {
+                errors += write(pending.remove(), out);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return errors;
+    }
+
+    /**
+     * Waits for a chunk and writes its results.
+     *
+     * @return The chunk's number of errors.
+     */
+    private static int write(Future<Chunk> future, Writer out) throws IOException {
+        Chunk done;
+        try {
+            done = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while evaluating");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        }
+        out.append(done.text);
+        return done.errors;
+    }
+
+    /**
+     * Reads up to a chunk of lines.
+     *
+     * @return The lines, or null at the end of the input.
+     */
+    private Chunk read(BufferedReader in) throws IOException {
+        String[] lines = new String[chunk];
+        int count = 0;
+        while (count < chunk && (lines[count] = in.readLine()) != null) {
+            count++;
+        }
+        return count == 0 ? null : new Chunk(lines, count);
+    }
+
+    /**
+     * Lines read together, and once evaluated, their output.
+     */
+    private final class Chunk {
+        private final String[] lines;
+        private final int count;
+        private StringBuilder text;
+        private int errors;
+
+        Chunk(String[] lines, int count) {
+            this.lines = lines;
+            this.count = count;
+        }
+
+        /**
+         * Evaluates the lines.
+         *
+         * @param formatter Formats double results.
+         * @param text      Receives a line for each line.
+         * @return The number of lines that could not be evaluated.
+         */
+        int evaluate(DoubleFormatter formatter, StringBuilder text) {
+            int errors = 0;
+            for (int i = 0; i < count; i++) {
+                String line = lines[i];
+                if (!line.isBlank()) {
+                    try {
+                        Expression expression = Expression.compile(line);
+                        if (decimal != null) {
+                            text.append(decimal.evaluate(expression).stripTrailingZeros().toPlainString());
+                        } else {
+                            formatter.appendRounded(text, expression.evaluate());
+                        }
+                    } catch (RuntimeException e) {
+                        text.append("Error: ").append(e.getMessage());
+                        errors++;
+                    }
+                }
+                text.append('\n');
+            }
+            return errors;
+        }
+    }
+}
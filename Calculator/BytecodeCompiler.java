@@ -0,0 +1,573 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Compiles expression trees to hidden classes implementing
+ * {@link CompiledFormula}. The class file is written by hand, since the
+ * JDK has no class-file API before Java 22, and defined with
+ * {@link MethodHandles.Lookup#defineHiddenClass}, so a formula's class can
+ * be unloaded once the formula is no longer used.
+ * <p>
+ * Each tree node becomes the bytecode {@code javac} would emit for the same
+ * Java expression: {@code dadd}, {@code dmul} and so on, and calls to the
+ * same {@link Math} methods the interpreter uses, so results are identical
+ * to the last bit. Division and modulo call small static helpers that
+ * check for zero, which the JIT inlines. Three methods are generated:
+ * {@code evaluate(double[])}, a batch loop that reads the row's values
+ * straight from the columns, and, for at most one variable,
+ * {@code applyAsDouble(double)}, so the class also implements
+ * {@link java.util.function.DoubleUnaryOperator}. A subtree the {@link Optimizer} shared
+ * is evaluated once and kept in a local variable for its other uses.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+final class BytecodeCompiler {
+    // Beyond this many variables the batch loop's locals need wide instructions.
+    private static final int MAX_VARIABLES = 200;
+    private static final int MAX_CODE = 65535;
+    // The farthest a two-byte branch offset reaches.
+    private static final int MAX_BRANCH = Short.MAX_VALUE;
+    // The highest local a double can start at with one-byte indexes.
+    private static final int MAX_LOCAL = 254;
+
+    private static final String SELF = "CompiledFormulaImpl";
+    private static final String MATH = "java/lang/Math";
+    private static final String HELPERS = "BytecodeCompiler";
+
+    // Opcodes used by the generated code.
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC2_W = 0x14;
+    private static final int ILOAD = 0x15;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD = 0x19;
+    private static final int ILOAD_3 = 0x1d;
+    private static final int DLOAD_1 = 0x27;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int DALOAD = 0x31;
+    private static final int AALOAD = 0x32;
+    private static final int ISTORE = 0x36;
+    private static final int DSTORE = 0x39;
+    private static final int ASTORE = 0x3a;
+    private static final int DASTORE = 0x52;
+    private static final int DUP2 = 0x5c;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DNEG = 0x77;
+    private static final int IINC = 0x84;
+    private static final int IF_ICMPGE = 0xa2;
+    private static final int GOTO = 0xa7;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    // Stack map verification types.
+    private static final int ITEM_INTEGER = 1;
+    private static final int ITEM_OBJECT = 7;
+    private static final int FULL_FRAME = 255;
+
+    private BytecodeCompiler() {
+    }
+
+    /**
+     * Compiles a tree.
+     *
+     * @param root      The root of the tree.
+     * @param variables The number of variables.
+     * @return The formula, or null if the tree is too large to compile or
+     *         the JVM will not load the class.
+     */
+    static CompiledFormula compile(Node root, int variables) {
+        if (variables > MAX_VARIABLES) {
+            return null;
+        }
+        try {
+            byte[] bytes = new BytecodeCompiler.ClassFile(root, variables).toByteArray();
+            if (bytes == null) {
+                return null;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (CompiledFormula) lookup.lookupClass().getConstructor().newInstance();
+        } catch (IOException | ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not compile " + root, e);
+        } catch (LinkageError e) {
+            // A limit the checks above missed; the caller keeps interpreting.
+            return null;
+        }
+    }
+
+    /**
+     * Divides like {@link Node.Operator#DIVIDE}. Called by generated code.
+     */
+    static double divide(double x, double y) {
+        if (y == 0) throw new ArithmeticException("Division by zero");
+        return x / y;
+    }
+
+    /**
+     * Takes the remainder like {@link Node.Operator#MODULO}. Called by
+     * generated code.
+     */
+    static double modulo(double x, double y) {
+        if (y == 0) throw new ArithmeticException("Modulo by zero");
+        return x % y;
+    }
+
+    /**
+     * The class file of one formula.
+     */
+    private static final class ClassFile {
+        private final Node root;
+        private final int variables;
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final Map<String, Integer> poolIndex = new HashMap<>();
+        private int poolSize = 1;
+        // How many parents each node has.
+        private final Map<Node, Integer> uses = new IdentityHashMap<>();
+        // The local holding each shared subtree's value in the current method.
+        private final Map<Node, Integer> locals = new IdentityHashMap<>();
+        private int nextLocal;
+
+        ClassFile(Node root, int variables) {
+            this.root = root;
+            this.variables = variables;
+        }
+
+        /**
+         * Writes the class file.
+         *
+         * @return The bytes, or null if a method would be too long.
+         */
+        byte[] toByteArray() throws IOException {
+            int self = classRef(SELF);
+            int object = classRef("java/lang/Object");
+            int formula = classRef("CompiledFormula");
+            int unaryOperator = classRef("java/util/function/DoubleUnaryOperator");
+            // Room for a dup2 before saving a shared value.
+            int depth = depth(root) + 2;
+            count(root);
+
+            ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+            DataOutputStream methods = new DataOutputStream(methodBytes);
+            int methodCount = 0;
+
+            Code init = new Code();
+            init.op(ALOAD_0);
+            init.op(INVOKESPECIAL).u2(methodRef("java/lang/Object", "<init>", "()V"));
+            init.op(RETURN);
+            methodCount += method(methods, "<init>", "()V", init, 1, 1, null);
+
+            Code scalar = new Code();
+            startMethod(2);
+            emit(scalar, root, Mode.ARRAY, 0);
+            scalar.op(DRETURN);
+            methodCount += method(methods, "evaluate", "([D)D", scalar, depth, nextLocal, null);
+
+            if (variables <= 1) {
+                Code unary = new Code();
+                startMethod(3);
+                emit(unary, root, Mode.ARGUMENT, 0);
+                unary.op(DRETURN);
+                methodCount += method(methods, "applyAsDouble", "(D)D", unary, depth, nextLocal, null);
+            }
+
+            // Locals: this, columns, out, from, to, one per column, the row,
+            // then shared values.
+            int firstColumn = 5;
+            int row = firstColumn + variables;
+            Code batch = new Code();
+            for (int k = 0; k < variables; k++) {
+                batch.op(ALOAD_1);
+                pushInt(batch, k);
+                batch.op(AALOAD);
+                batch.op(ASTORE).u1(firstColumn + k);
+            }
+            batch.op(ILOAD_3);
+            batch.op(ISTORE).u1(row);
+            int loop = batch.length();
+            batch.op(ILOAD).u1(row);
+            batch.op(ILOAD).u1(4);
+            int exitJump = batch.length();
+            batch.op(IF_ICMPGE).u2(0);
+            batch.op(ALOAD_2);
+            batch.op(ILOAD).u1(row);
+            startMethod(row + 1);
+            emit(batch, root, Mode.COLUMNS, firstColumn);
+            batch.op(DASTORE);
+            batch.op(IINC).u1(row).u1(1);
+            batch.op(GOTO).u2(loop - batch.length() + 1);
+            int exit = batch.length();
+            batch.patch(exitJump + 1, exit - exitJump);
+            batch.op(RETURN);
+            byte[] frames = loopFrames(self, firstColumn, row, loop, exit);
+            methodCount += method(methods, "evaluate", "([[D[DII)V", batch, depth + 2, nextLocal, frames);
+
+            // The loop's branches span the whole batch method.
+            if (scalar.length() > MAX_CODE || batch.length() > MAX_BRANCH) {
+                return null;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            // Every pool entry has been added by now.
+            out.writeShort(poolSize);
+            poolBytes.writeTo(out);
+            out.writeShort(0x0031); // public final super
+            out.writeShort(self);
+            out.writeShort(object);
+            if (variables <= 1) {
+                out.writeShort(2);
+                out.writeShort(formula);
+                out.writeShort(unaryOperator);
+            } else {
+                out.writeShort(1);
+                out.writeShort(formula);
+            }
+            out.writeShort(0); // fields
+            out.writeShort(methodCount);
+            methodBytes.writeTo(out);
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        }
+
+        /**
+         * The stack map of the batch loop: the same locals and an empty
+         * stack at the loop head and at the exit.
+         */
+        private byte[] loopFrames(int self, int firstColumn, int row, int loop, int exit) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(2);
+            int columnArray = classRef("[D");
+            int[] offsets = {loop, exit - loop - 1};
+            for (int offset : offsets) {
+                out.writeByte(FULL_FRAME);
+                out.writeShort(offset);
+                out.writeShort(row + 1);
+                out.writeByte(ITEM_OBJECT);
+                out.writeShort(self);
+                out.writeByte(ITEM_OBJECT);
+                out.writeShort(classRef("[[D"));
+                out.writeByte(ITEM_OBJECT);
+                out.writeShort(columnArray);
+                out.writeByte(ITEM_INTEGER);
+                out.writeByte(ITEM_INTEGER);
+                for (int k = firstColumn; k < row; k++) {
+                    out.writeByte(ITEM_OBJECT);
+                    out.writeShort(columnArray);
+                }
+                out.writeByte(ITEM_INTEGER);
+                out.writeShort(0);
+            }
+            return bytes.toByteArray();
+        }
+
+        private int method(DataOutputStream out, String name, String descriptor, Code code,
+                           int maxStack, int maxLocals, byte[] frames) throws IOException {
+            out.writeShort(0x0001); // public
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            byte[] body = code.toByteArray();
+            int framesLength = frames != null ? 6 + frames.length : 0;
+            out.writeInt(12 + body.length + framesLength);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0); // exception table
+            if (frames != null) {
+                out.writeShort(1);
+                out.writeShort(utf8("StackMapTable"));
+                out.writeInt(frames.length);
+                out.write(frames);
+            } else {
+                out.writeShort(0);
+            }
+            return 1;
+        }
+
+        /**
+         * Emits the code that leaves a subtree's value on the stack.
+         *
+         * @param firstColumn The local holding the first column, for {@link Mode#COLUMNS}.
+         */
+        private void emit(Code code, Node node, Mode mode, int firstColumn) throws IOException {
+            Integer local = locals.get(node);
+            if (local != null) {
+                code.op(DLOAD).u1(local);
+                return;
+            }
+            emitTree(code, node, mode, firstColumn);
+            boolean leaf = node instanceof Node.Constant || node instanceof Node.Variable;
+            if (!leaf && uses.get(node) > 1 && nextLocal <= MAX_LOCAL) {
+                code.op(DUP2);
+                code.op(DSTORE).u1(nextLocal);
+                locals.put(node, nextLocal);
+                nextLocal += 2;
+            }
+        }
+
+        private void emitTree(Code code, Node node, Mode mode, int firstColumn) throws IOException {
+            if (node instanceof Node.Constant) {
+                code.op(LDC2_W).u2(doubleConstant(((Node.Constant) node).value));
+            } else if (node instanceof Node.Variable) {
+                int index = ((Node.Variable) node).index;
+                switch (mode) {
+                    case ARRAY:
+                        code.op(ALOAD_1);
+                        pushInt(code, index);
+                        code.op(DALOAD);
+                        break;
+                    case ARGUMENT:
+                        code.op(DLOAD_1);
+                        break;
+                    default:
+                        code.op(ALOAD).u1(firstColumn + index);
+                        code.op(ILOAD).u1(firstColumn + variables);
+                        code.op(DALOAD);
+                        break;
+                }
+            } else if (node instanceof Node.Negate) {
+                emit(code, ((Node.Negate) node).operand, mode, firstColumn);
+                code.op(DNEG);
+            } else if (node instanceof Node.Binary) {
+                Node.Binary binary = (Node.Binary) node;
+                emit(code, binary.left, mode, firstColumn);
+                emit(code, binary.right, mode, firstColumn);
+                switch (binary.operator) {
+                    case ADD:
+                        code.op(DADD);
+                        break;
+                    case SUBTRACT:
+                        code.op(DSUB);
+                        break;
+                    case MULTIPLY:
+                        code.op(DMUL);
+                        break;
+                    case DIVIDE:
+                        invoke(code, HELPERS, "divide", "(DD)D");
+                        break;
+                    case MODULO:
+                        invoke(code, HELPERS, "modulo", "(DD)D");
+                        break;
+                    default:
+                        invoke(code, MATH, "pow", "(DD)D");
+                        break;
+                }
+            } else {
+                Node.Call call = (Node.Call) node;
+                emit(code, call.argument, mode, firstColumn);
+                switch (call.function) {
+                    case SQRT:
+                        invoke(code, MATH, "sqrt", "(D)D");
+                        break;
+                    case SIN:
+                        invoke(code, MATH, "toRadians", "(D)D");
+                        invoke(code, MATH, "sin", "(D)D");
+                        break;
+                    case COS:
+                        invoke(code, MATH, "toRadians", "(D)D");
+                        invoke(code, MATH, "cos", "(D)D");
+                        break;
+                    case TAN:
+                        invoke(code, MATH, "toRadians", "(D)D");
+                        invoke(code, MATH, "tan", "(D)D");
+                        break;
+                    case LOG:
+                        invoke(code, MATH, "log10", "(D)D");
+                        break;
+                    case LN:
+                        invoke(code, MATH, "log", "(D)D");
+                        break;
+                    default:
+                        invoke(code, MATH, "abs", "(D)D");
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Counts the parents of each node below this one.
+         */
+        private void count(Node node) {
+            if (uses.merge(node, 1, Integer::sum) > 1) {
+                return;
+            }
+            if (node instanceof Node.Negate) {
+                count(((Node.Negate) node).operand);
+            } else if (node instanceof Node.Binary) {
+                count(((Node.Binary) node).left);
+                count(((Node.Binary) node).right);
+            } else if (node instanceof Node.Call) {
+                count(((Node.Call) node).argument);
+            }
+        }
+
+        /**
+         * Forgets the shared values of the previous method.
+         *
+         * @param firstLocal The first local free for shared values.
+         */
+        private void startMethod(int firstLocal) {
+            locals.clear();
+            nextLocal = firstLocal;
+        }
+
+        /**
+         * Gets the operand stack slots a subtree needs; a double takes two.
+         */
+        private static int depth(Node node) {
+            if (node instanceof Node.Negate) {
+                return depth(((Node.Negate) node).operand);
+            }
+            if (node instanceof Node.Call) {
+                return depth(((Node.Call) node).argument);
+            }
+            if (node instanceof Node.Binary) {
+                Node.Binary binary = (Node.Binary) node;
+                return Math.max(depth(binary.left), 2 + depth(binary.right));
+            }
+            return 2;
+        }
+
+        private void invoke(Code code, String owner, String name, String descriptor) throws IOException {
+            code.op(INVOKESTATIC).u2(methodRef(owner, name, descriptor));
+        }
+
+        private static void pushInt(Code code, int value) {
+            if (value <= 5) {
+                code.op(ICONST_0 + value);
+            } else if (value <= Byte.MAX_VALUE) {
+                code.op(BIPUSH).u1(value);
+            } else {
+                code.op(SIPUSH).u2(value);
+            }
+        }
+
+        private int utf8(String text) throws IOException {
+            Integer index = poolIndex.get("U" + text);
+            if (index == null) {
+                pool.writeByte(1);
+                pool.writeUTF(text);
+                index = add("U" + text, 1);
+            }
+            return index;
+        }
+
+        private int classRef(String name) throws IOException {
+            Integer index = poolIndex.get("C" + name);
+            if (index == null) {
+                int nameIndex = utf8(name);
+                pool.writeByte(7);
+                pool.writeShort(nameIndex);
+                index = add("C" + name, 1);
+            }
+            return index;
+        }
+
+        private int methodRef(String owner, String name, String descriptor) throws IOException {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer index = poolIndex.get(key);
+            if (index == null) {
+                int ownerIndex = classRef(owner);
+                int nameIndex = utf8(name);
+                int descriptorIndex = utf8(descriptor);
+                pool.writeByte(12);
+                pool.writeShort(nameIndex);
+                pool.writeShort(descriptorIndex);
+                int nameAndType = add(key + "#", 1);
+                pool.writeByte(10);
+                pool.writeShort(ownerIndex);
+                pool.writeShort(nameAndType);
+                index = add(key, 1);
+            }
+            return index;
+        }
+
+        private int doubleConstant(double value) throws IOException {
+            long bits = Double.doubleToRawLongBits(value);
+            String key = "D" + bits;
+            Integer index = poolIndex.get(key);
+            if (index == null) {
+                pool.writeByte(6);
+                pool.writeLong(bits);
+                // A double takes two pool slots.
+                index = add(key, 2);
+            }
+            return index;
+        }
+
+        private int add(String key, int slots) {
+            int index = poolSize;
+            poolSize += slots;
+            poolIndex.put(key, index);
+            return index;
+        }
+    }
+
+    /**
+     * Where a method finds the variables' values.
+     */
+    private enum Mode {
+        /** In the {@code double[]} argument. */
+        ARRAY,
+        /** In the single {@code double} argument. */
+        ARGUMENT,
+        /** In the column locals, at the row in the local after them. */
+        COLUMNS
+    }
+
+    /**
+     * A growing method body.
+     */
+    private static final class Code {
+        private byte[] bytes = new byte[64];
+        private int length;
+
+        Code op(int opcode) {
+            return u1(opcode);
+        }
+
+        Code u1(int value) {
+            if (length == bytes.length) {
+                bytes = java.util.Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte) value;
+            return this;
+        }
+
+        Code u2(int value) {
+            return u1(value >> 8).u1(value);
+        }
+
+        void patch(int at, int value) {
+            bytes[at] = (byte) (value >> 8);
+            bytes[at + 1] = (byte) value;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            return java.util.Arrays.copyOf(bytes, length);
+        }
+    }
+}
@@ -1,3 +1,16 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.MathContext;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
 import java.util.InputMismatchException;
 import java.util.ArrayList;
@@ -23,12 +36,27 @@ public class Calculator {
     // Calculation history
     private static List<String> history = new ArrayList<>();
 
+    // Compiled expressions by normalized text
+    private static final ExpressionCache cache = new ExpressionCache(1024);
+
+    // Decimal arithmetic, or null to calculate in double
+    private static DecimalEvaluator decimal = null;
+
+    // Bytes and characters buffered by batch mode
+    private static final int BATCH_BUFFER = 1 << 16;
+
     /**
-     * The main method that runs the calculator.
+     * The main method that runs the calculator. Without arguments it is
+     * interactive; with {@code --batch} it evaluates a file or standard
+     * input line by line, see {@link #runBatch(String[])}.
      *
-     * @param args Command-line arguments (not used).
+     * @param args Command-line arguments.
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(runBatch(args));
+        }
+
         Scanner scanner = new Scanner(System.in);
         boolean continueCalculating = true;
 
@@ -52,6 +80,9 @@ public class Calculator {
                 } else if (input.equalsIgnoreCase("exit") || input.equalsIgnoreCase("quit")) {
                     continueCalculating = false;
                     continue;
+                } else if (input.toLowerCase().startsWith("mode")) {
+                    handleModeCommand(input);
+                    continue;
                 } else if (input.toLowerCase().startsWith("m")) {
                     handleMemoryCommand(input);
                     continue;
@@ -60,6 +91,13 @@ public class Calculator {
                     continue;
                 }
 
+                if (decimal != null) {
+                    String formattedResult = decimal.evaluate(input).stripTrailingZeros().toPlainString();
+                    System.out.println("✅ Result: " + formattedResult);
+                    addToHistory(input + " = " + formattedResult);
+                    continue;
+                }
+
                 // Evaluate the expression
                 double result = evaluateExpression(input);
 
@@ -89,6 +127,87 @@ public class Calculator {
         scanner.close();
     }
 
+    /**
+     * Runs batch mode: {@code --batch [FILE] [--output=FILE] [--threads=N]
+     * [--mode=double|decimal|exact|N]}. Expressions are read from the file,
+     * or standard input if there is none or it is {@code -}, and one result
+     * per line is written to the output file or standard output. Zero
+     * threads means one per core.
+     *
+     * @param args Command-line arguments.
+     * @return The exit status: 0 if every line was evaluated, 1 if some
+     *         could not be, 2 on a usage or I/O error.
+     */
+    private static int runBatch(String[] args) {
+        String input = null;
+        String output = null;
+        int threads = 1;
+        DecimalEvaluator evaluator = null;
+        boolean batch = false;
+        try {
+            for (String arg : args) {
+                if (arg.equals("--batch")) {
+                    batch = true;
+                } else if (arg.startsWith("--output=")) {
+                    output = arg.substring("--output=".length());
+                } else if (arg.startsWith("--threads=")) {
+                    threads = Integer.parseInt(arg.substring("--threads=".length()));
+                    if (threads < 0) {
+                        throw new NumberFormatException();
+                    }
+                } else if (arg.startsWith("--mode=")) {
+                    evaluator = parseMode(arg.substring("--mode=".length()));
+                } else if (input == null && (arg.equals("-") || !arg.startsWith("-"))) {
+                    input = arg;
+                } else {
+                    batch = false;
+                    break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            batch = false;
+        }
+        if (!batch) {
+            System.err.println("Usage: java Calculator --batch [FILE] [--output=FILE] [--threads=N]"
+                    + " [--mode=double|decimal|exact|N]");
+            return 2;
+        }
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        BatchRunner runner = new BatchRunner(threads, BatchRunner.DEFAULT_CHUNK, evaluator);
+        FileChannel source = null;
+        FileChannel sink = null;
+        try {
+            source = input == null || input.equals("-")
+                    ? new FileInputStream(FileDescriptor.in).getChannel()
+                    : FileChannel.open(Paths.get(input));
+            sink = output == null
+                    ? new FileOutputStream(FileDescriptor.out).getChannel()
+                    : FileChannel.open(Paths.get(output), StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            BufferedReader reader = new BufferedReader(
+                    Channels.newReader(source, StandardCharsets.UTF_8), BATCH_BUFFER);
+            Writer writer = new BufferedWriter(Channels.newWriter(sink, StandardCharsets.UTF_8), BATCH_BUFFER);
+            return runner.run(reader, writer) == 0 ? 0 : 1;
+        } catch (IOException e) {
+            System.err.println("Error: " + e);
+            return 2;
+        } finally {
+            try {
+                if (source != null) {
+                    source.close();
+                }
+                if (sink != null) {
+                    sink.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Error: " + e);
+            }
+        }
+    }
+
     /**
      * Prints the welcome message and instructions.
      */
@@ -101,6 +220,7 @@ public class Calculator {
         System.out.println("• Scientific: sin, cos, tan, sqrt, log, ln, abs");
         System.out.println("• Parentheses: (2 + 3) * 4");
         System.out.println("• Memory: M+, M-, MR, MC");
+        System.out.println("• Exact decimals: mode decimal");
         System.out.println("• Commands: help, history, clear history, exit");
         System.out.println("\nType 'help' for detailed instructions.");
     }
@@ -133,6 +253,11 @@ public class Calculator {
         System.out.println("  M-       Subtract from memory Example: M- 5");
         System.out.println("  MR       Recall memory       Example: MR");
         System.out.println("  MC       Clear memory        Example: MC");
+        System.out.println("\nNUMBER MODES:");
+        System.out.println("  mode double    Binary floating point (default)");
+        System.out.println("  mode decimal   Decimal, rounded to 34 digits  Example: 0.1 + 0.2 = 0.3");
+        System.out.println("  mode exact     Decimal, never rounded (1/3 is an error)");
+        System.out.println("  mode N         Decimal, rounded to N digits");
         System.out.println("\nCOMMANDS:");
         System.out.println("  help           Show this help");
         System.out.println("  history        Show calculation history");
@@ -141,6 +266,19 @@ public class Calculator {
         System.out.println("════════════════════════════════════");
     }
 
+    /**
+     * Compiles an expression once for repeated evaluation. Compiled forms
+     * are cached by their normalized text, so compiling text that was seen
+     * recently costs a map lookup.
+     *
+     * @param expression The expression to compile.
+     * @return The compiled expression.
+     * @throws IllegalArgumentException If the expression is malformed.
+     */
+    public static Expression compile(String expression) {
+        return cache.get(expression);
+    }
+
     /**
      * Evaluates a mathematical expression.
      *
@@ -148,99 +286,7 @@ public class Calculator {
      * @return The result of the evaluation.
      */
     private static double evaluateExpression(String expression) {
-        // Remove spaces
-        final String expr = expression.replaceAll("\\s+", "").toLowerCase();
-
-        if (expr.isEmpty()) return 0;
-
-        return new Object() {
-            int pos = -1, ch;
-
-            void nextChar() {
-                ch = (++pos < expr.length()) ? expr.charAt(pos) : -1;
-            }
-
-            boolean eat(int charToEat) {
-                while (ch == ' ') nextChar();
-                if (ch == charToEat) {
-                    nextChar();
-                    return true;
-                }
-                return false;
-            }
-
-            double parse() {
-                nextChar();
-                double x = parseExpression();
-                if (pos < expr.length()) throw new RuntimeException("Unexpected: " + (char) ch);
-                return x;
-            }
-
-            // Grammar:
-            // expression = term | expression `+` term | expression `-` term
-            // term = factor | term `*` factor | term `/` factor | term `%` factor
-            // factor = `+` factor | `-` factor | `(` expression `)` | number | function factor | factor `^` factor
-
-            double parseExpression() {
-                double x = parseTerm();
-                for (;;) {
-                    if      (eat('+')) x += parseTerm(); // addition
-                    else if (eat('-')) x -= parseTerm(); // subtraction
-                    else return x;
-                }
-            }
-
-            double parseTerm() {
-                double x = parseFactor();
-                for (;;) {
-                    if      (eat('*')) x *= parseFactor(); // multiplication
-                    else if (eat('/')) {
-                        double divisor = parseFactor();
-                        if (divisor == 0) throw new ArithmeticException("Division by zero");
-                        x /= divisor;
-                    }
-                    else if (eat('%')) {
-                        double divisor = parseFactor();
-                        if (divisor == 0) throw new ArithmeticException("Modulo by zero");
-                        x %= divisor;
-                    }
-                    else return x;
-                }
-            }
-
-            double parseFactor() {
-                if (eat('+')) return parseFactor(); // unary plus
-                if (eat('-')) return -parseFactor(); // unary minus
-
-                double x;
-                int startPos = this.pos;
-                if (eat('(')) { // parentheses
-                    x = parseExpression();
-                    eat(')');
-                } else if ((ch >= '0' && ch <= '9') || ch == '.') { // numbers
-                    while ((ch >= '0' && ch <= '9') || ch == '.') nextChar();
-                    x = Double.parseDouble(expr.substring(startPos, this.pos));
-                } else if (ch >= 'a' && ch <= 'z') { // functions
-                    while (ch >= 'a' && ch <= 'z') nextChar();
-                    String func = expr.substring(startPos, this.pos);
-                    x = parseFactor();
-                    if (func.equals("sqrt")) x = Math.sqrt(x);
-                    else if (func.equals("sin")) x = Math.sin(Math.toRadians(x));
-                    else if (func.equals("cos")) x = Math.cos(Math.toRadians(x));
-                    else if (func.equals("tan")) x = Math.tan(Math.toRadians(x));
-                    else if (func.equals("log")) x = Math.log10(x);
-                    else if (func.equals("ln")) x = Math.log(x);
-                    else if (func.equals("abs")) x = Math.abs(x);
-                    else throw new RuntimeException("Unknown function: " + func);
-                } else {
-                    throw new RuntimeException("Unexpected: " + (char) ch);
-                }
-
-                if (eat('^')) x = Math.pow(x, parseFactor()); // exponentiation
-
-                return x;
-            }
-        }.parse();
+        return compile(expression).evaluate();
     }
 
     /**
@@ -297,6 +343,50 @@ public class Calculator {
         }
     }
 
+    /**
+     * Handle the number mode command.
+     *
+     * @param input The mode command to handle.
+     */
+    private static void handleModeCommand(String input) {
+        String[] parts = input.trim().split("\\s+");
+        String mode = parts.length > 1 ? parts[1] : "";
+
+        try {
+            decimal = parseMode(mode);
+        } catch (NumberFormatException e) {
+            System.out.println("❌ Error: Use mode double, mode decimal, mode exact or mode N (digits).");
+            return;
+        }
+        System.out.println("✅ Calculating in " + (decimal == null ? "double"
+                : decimal.getMathContext().getPrecision() == 0 ? "exact decimal"
+                : decimal.getMathContext().getPrecision() + "-digit decimal") + ".");
+    }
+
+    /**
+     * Parse a number mode.
+     *
+     * @param mode double, decimal, exact or a number of digits.
+     * @return The decimal evaluator for the mode, or null for double.
+     * @throws NumberFormatException If the mode is not one of those.
+     */
+    private static DecimalEvaluator parseMode(String mode) {
+        switch (mode.toLowerCase()) {
+            case "double":
+                return null;
+            case "decimal":
+                return new DecimalEvaluator();
+            case "exact":
+                return new DecimalEvaluator(MathContext.UNLIMITED);
+            default:
+                int digits = Integer.parseInt(mode);
+                if (digits < 1) {
+                    throw new NumberFormatException("Digits must be at least 1");
+                }
+                return new DecimalEvaluator(new MathContext(digits));
+        }
+    }
+
     /**
      * Add calculation to history.
      *
@@ -335,16 +425,13 @@ public class Calculator {
     }
 
     /**
-     * Format result to handle floating-point precision.
+     * Format result to handle floating-point precision: integers in full,
+     * anything else rounded to 10 decimals without trailing zeros.
      *
      * @param result The result to format.
      * @return The formatted result.
      */
     private static String formatResult(double result) {
-        if (result == Math.floor(result) && !Double.isInfinite(result)) {
-            return String.format("%.0f", result);
-        }
-        String formatted = String.format("%.10f", result).replaceAll("0+$", "").replaceAll("\\.$", "");
-        return formatted.isEmpty() ? "0" : formatted;
+        return new DoubleFormatter().appendRounded(new StringBuilder(24), result).toString();
     }
 }
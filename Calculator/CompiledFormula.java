@@ -0,0 +1,51 @@
+import java.util.Optional;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * An expression compiled to JVM bytecode, so the JIT sees its arithmetic
+ * as ordinary straight-line code it can inline and optimize. Made by
+ * {@link Expression#toFormula()}, or automatically for an expression that
+ * has been evaluated often enough.
+ * <p>
+ * A formula of at most one variable can also be used as a
+ * {@link DoubleUnaryOperator}, through {@link #asUnary()}.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public interface CompiledFormula {
+
+    /**
+     * Evaluates the formula.
+     *
+     * @param values The value of each variable, in the order of the
+     *               expression's {@link Expression#getVariables()}.
+     * @return The result.
+     * @throws ArithmeticException On division or modulo by zero.
+     */
+    double evaluate(double[] values);
+
+    /**
+     * Evaluates the formula for a range of rows of a batch. The arguments
+     * are not checked.
+     *
+     * @param columns The values of each variable, one column per variable.
+     * @param out     Receives the result for each row, at the row's index.
+     * @param from    The first row.
+     * @param to      The row after the last.
+     * @throws ArithmeticException On division or modulo by zero in any row.
+     */
+    void evaluate(double[][] columns, double[] out, int from, int to);
+
+    /**
+     * Gets the formula as a function of its one variable, if it has at most
+     * one. A formula with no variables ignores the argument.
+     *
+     * @return The function, or empty if the formula has more than one
+     *         variable.
+     */
+    default Optional<DoubleUnaryOperator> asUnary() {
+        // The compiler implements DoubleUnaryOperator only where it applies.
+        return this instanceof DoubleUnaryOperator ? Optional.of((DoubleUnaryOperator) this) : Optional.empty();
+    }
+}
@@ -0,0 +1,331 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * Evaluates expressions in decimal rather than binary floating point, so
+ * {@code 0.1 + 0.2} is exactly {@code 0.3} and sums of money come out to
+ * the cent. It uses the same grammar and compiled {@link Expression}s as
+ * the double evaluator, working from each literal's exact decimal value.
+ * <p>
+ * Arithmetic stays in {@code long} while every value is an integer and
+ * nothing overflows, which covers most simple sums at the cost of a few
+ * comparisons; it moves to {@link BigDecimal}, rounded to the evaluator's
+ * {@link MathContext}, as soon as a value has a fraction or would overflow.
+ * The final result is rounded to the context as well.
+ * With {@link MathContext#UNLIMITED} every result is exact, and one with
+ * no finite decimal form, such as {@code 1/3}, throws, as does a power of
+ * more than {@value #MAX_EXACT_DIGITS} digits.
+ * <p>
+ * {@code sqrt} and integer powers are computed to the full precision;
+ * {@code sin}, {@code cos}, {@code tan}, {@code log}, {@code ln} and
+ * non-integer powers have no exact decimal form and are computed in double
+ * precision. Results a double would show as NaN or infinity, such as the
+ * square root of a negative number, throw {@link ArithmeticException}
+ * instead.
+ * <p>
+ * Evaluators are immutable and can be shared between threads.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public final class DecimalEvaluator {
+    private static final BigDecimal LONG_MIN = BigDecimal.valueOf(Long.MIN_VALUE);
+    private static final BigDecimal LONG_MAX = BigDecimal.valueOf(Long.MAX_VALUE);
+    // The largest exponent BigDecimal.pow takes.
+    private static final BigDecimal MAX_EXPONENT = BigDecimal.valueOf(999_999_999);
+    /** The most significant digits of an exact power. */
+    public static final int MAX_EXACT_DIGITS = 100_000;
+    private static final double LOG10_2 = Math.log10(2);
+
+    private final MathContext context;
+
+    /**
+     * Creates an evaluator rounding to 34 digits, IEEE 754 decimal128.
+     */
+    public DecimalEvaluator() {
+        this(MathContext.DECIMAL128);
+    }
+
+    /**
+     * Creates an evaluator.
+     *
+     * @param context The precision and rounding of inexact results.
+     */
+    public DecimalEvaluator(MathContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Gets the precision and rounding of inexact results.
+     *
+     * @return The math context.
+     */
+    public MathContext getMathContext() {
+        return context;
+    }
+
+    /**
+     * Evaluates an expression without variables, compiling it through the
+     * calculator's cache.
+     *
+     * @param expression The expression text.
+     * @return The result.
+     * @throws IllegalArgumentException If the expression is malformed or has variables.
+     * @throws ArithmeticException      On division or modulo by zero, or a
+     *                                  result that is not a finite number.
+     */
+    public BigDecimal evaluate(String expression) {
+        return evaluate(Calculator.compile(expression));
+    }
+
+    /**
+     * Evaluates a compiled expression.
+     *
+     * @param expression The expression.
+     * @param values     The value of each variable, in the order of
+     *                   {@link Expression#getVariables()}.
+     * @return The result.
+     * @throws IllegalArgumentException If a variable has no value.
+     * @throws ArithmeticException      On division or modulo by zero, or a
+     *                                  result that is not a finite number.
+     */
+    public BigDecimal evaluate(Expression expression, BigDecimal... values) {
+        if (values.length < expression.getVariables().size()) {
+            throw new IllegalArgumentException("No value for variable: "
+                    + expression.getVariables().get(values.length));
+        }
+        Evaluation evaluation = new Evaluation(values);
+        evaluation.evaluate(expression.parsed());
+        return evaluation.result().round(context);
+    }
+
+    /**
+     * The registers of one evaluation: each node leaves its value in
+     * {@code whole} if it is an integer that fits a long, or else in
+     * {@code decimal}.
+     */
+    private final class Evaluation {
+        private final BigDecimal[] values;
+        private boolean isWhole;
+        private long whole;
+        private BigDecimal decimal;
+
+        Evaluation(BigDecimal[] values) {
+            this.values = values;
+        }
+
+        BigDecimal result() {
+            return isWhole ? BigDecimal.valueOf(whole) : decimal;
+        }
+
+        void evaluate(Node node) {
+            if (node instanceof Node.Constant) {
+                constant((Node.Constant) node);
+            } else if (node instanceof Node.Variable) {
+                set(values[((Node.Variable) node).index]);
+            } else if (node instanceof Node.Negate) {
+                evaluate(((Node.Negate) node).operand);
+                if (isWhole && whole != Long.MIN_VALUE) {
+                    whole = -whole;
+                } else {
+                    decimal = result().negate();
+                    isWhole = false;
+                }
+            } else if (node instanceof Node.Binary) {
+                Node.Binary binary = (Node.Binary) node;
+                evaluate(binary.left);
+                boolean leftWhole = isWhole;
+                long x = whole;
+                BigDecimal left = decimal;
+                evaluate(binary.right);
+                if (!(leftWhole && isWhole && wholeBinary(binary.operator, x, whole))) {
+                    decimalBinary(binary.operator, leftWhole ? BigDecimal.valueOf(x) : left, result());
+                }
+            } else {
+                Node.Call call = (Node.Call) node;
+                evaluate(call.argument);
+                call(call.function);
+            }
+        }
+
+        private void constant(Node.Constant constant) {
+            if (constant.text == null && constant.scale >= 0) {
+                long unscaled = constant.unscaled;
+                int scale = constant.scale;
+                while (scale > 0 && unscaled % 10 == 0) {
+                    unscaled /= 10;
+                    scale--;
+                }
+                if (scale == 0) {
+                    setWhole(unscaled);
+                    return;
+                }
+            }
+            set(constant.decimal());
+        }
+
+        /**
+         * Applies an operator to two longs, if the result is a long too.
+         *
+         * @return Whether it was; if not, nothing is changed.
+         */
+        private boolean wholeBinary(Node.Operator operator, long x, long y) {
+            long r;
+            switch (operator) {
+                case ADD:
+                    r = x + y;
+                    if (((x ^ r) & (y ^ r)) < 0) return false;
+                    break;
+                case SUBTRACT:
+                    r = x - y;
+                    if (((x ^ y) & (x ^ r)) < 0) return false;
+                    break;
+                case MULTIPLY:
+                    r = x * y;
+                    long high = Math.multiplyHigh(x, y);
+                    if (high != (r >> 63)) return false;
+                    break;
+                case DIVIDE:
+                    if (y == 0) throw new ArithmeticException("Division by zero");
+                    if (x % y != 0 || (x == Long.MIN_VALUE && y == -1)) return false;
+                    r = x / y;
+                    break;
+                case MODULO:
+                    if (y == 0) throw new ArithmeticException("Modulo by zero");
+                    r = x % y;
+                    break;
+                default:
+                    if (y < 0) return false;
+                    r = 1;
+                    long base = x;
+                    for (long n = y; n > 0; n >>= 1) {
+                        if ((n & 1) != 0) {
+                            long product = r * base;
+                            if (Math.multiplyHigh(r, base) != (product >> 63)) return false;
+                            r = product;
+                        }
+                        if (n > 1) {
+                            long square = base * base;
+                            if (Math.multiplyHigh(base, base) != (square >> 63)) return false;
+                            base = square;
+                        }
+                    }
+                    break;
+            }
+            setWhole(r);
+            return true;
+        }
+
+        private void decimalBinary(Node.Operator operator, BigDecimal x, BigDecimal y) {
+            switch (operator) {
+                case ADD:
+                    set(x.add(y, context));
+                    break;
+                case SUBTRACT:
+                    set(x.subtract(y, context));
+                    break;
+                case MULTIPLY:
+                    set(x.multiply(y, context));
+                    break;
+                case DIVIDE:
+                    if (y.signum() == 0) throw new ArithmeticException("Division by zero");
+                    set(x.divide(y, context));
+                    break;
+                case MODULO:
+                    if (y.signum() == 0) throw new ArithmeticException("Modulo by zero");
+                    set(x.remainder(y, context));
+                    break;
+                default:
+                    power(x, y);
+                    break;
+            }
+        }
+
+        private void power(BigDecimal x, BigDecimal y) {
+            BigDecimal n = y.stripTrailingZeros();
+            if (n.scale() > 0 || n.abs().compareTo(MAX_EXPONENT) > 0) {
+                fromDouble(Math.pow(x.doubleValue(), y.doubleValue()));
+                return;
+            }
+            int exponent = n.intValue();
+            checkExactSize(x, exponent);
+            if (exponent >= 0) {
+                set(x.pow(exponent, context));
+            } else if (x.signum() == 0) {
+                throw new ArithmeticException("Result is not a finite number");
+            } else if (context.getPrecision() > 0) {
+                set(x.pow(exponent, context));
+            } else {
+                set(BigDecimal.ONE.divide(x.pow(-exponent)));
+            }
+        }
+
+        /**
+         * Checks that an exact power has a reasonable number of digits:
+         * about the exponent times the digits of the unscaled value.
+         */
+        private void checkExactSize(BigDecimal x, int exponent) {
+            if (context.getPrecision() > 0 || x.signum() == 0) {
+                return;
+            }
+            BigInteger unscaled = x.unscaledValue().abs();
+            int bits = unscaled.bitLength();
+            double digits = bits < 1000 ? Math.log10(unscaled.doubleValue()) : (bits - 1) * LOG10_2;
+            if (digits * Math.abs((long) exponent) > MAX_EXACT_DIGITS) {
+                throw new ArithmeticException("Result has more than " + MAX_EXACT_DIGITS + " digits");
+            }
+        }
+
+        private void call(Node.Function function) {
+            switch (function) {
+                case ABS:
+                    if (isWhole && whole != Long.MIN_VALUE) {
+                        whole = Math.abs(whole);
+                    } else {
+                        set(result().abs());
+                    }
+                    break;
+                case SQRT:
+                    BigDecimal x = result();
+                    if (x.signum() < 0) throw new ArithmeticException("Square root of a negative number");
+                    if (isWhole) {
+                        long root = (long) Math.sqrt(whole);
+                        // Correct the double estimate, which can be off by one.
+                        while (root * root > whole) root--;
+                        while ((root + 1) * (root + 1) <= whole && root < 3_037_000_499L) root++;
+                        if (root * root == whole) {
+                            setWhole(root);
+                            break;
+                        }
+                    }
+                    set(x.sqrt(context));
+                    break;
+                default:
+                    fromDouble(function.apply(result().doubleValue()));
+                    break;
+            }
+        }
+
+        private void fromDouble(double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new ArithmeticException("Result is not a finite number");
+            }
+            set(new BigDecimal(Double.toString(value), context));
+        }
+
+        private void set(BigDecimal value) {
+            if (value.scale() <= 0 && value.compareTo(LONG_MIN) >= 0 && value.compareTo(LONG_MAX) <= 0) {
+                setWhole(value.longValue());
+            } else {
+                isWhole = false;
+                decimal = value;
+            }
+        }
+
+        private void setWhole(long value) {
+            isWhole = true;
+            whole = value;
+        }
+    }
+}
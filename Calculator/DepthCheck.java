@@ -0,0 +1,153 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+
+/**
+ * Checks that long and deeply nested expressions never overflow the stack.
+ * Left-leaning chains such as {@code 1+x+x+...} as deep as the parser
+ * accepts must compile and give the right result through every evaluator:
+ * the tree, the columnar program, bytecode, decimal and batch mode. Deeper
+ * ones, and deep nests of parentheses, unary minus and functions, must be
+ * rejected with {@link IllegalArgumentException}.
+ * <p>
+ * Prints {@code ok} or the first failure, and exits with status 1 on a
+ * failure.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class DepthCheck {
+
+    /**
+     * The main method that runs the checks.
+     *
+     * @param args Command-line arguments (not used).
+     */
+    public static void main(String[] args) {
+        try {
+            int longest = Parser.MAX_DEPTH;
+            for (String operator : new String[]{"+", "-", "*", "/", "%"}) {
+                checkChain(operator, longest);
+            }
+            for (int terms : new int[]{longest + 1, 20_000, 200_000}) {
+                rejected(chain("1", "+", "1", terms));
+                rejected(chain("1", "+", "x", terms));
+                rejected(chain("2", "*", "x", terms));
+                rejected(chain("2", "^", "1", terms));
+            }
+            rejected(repeat("(", 100_000) + "1");
+            rejected(repeat("-", 100_000) + "1");
+            rejected(repeat("+", 100_000) + "1");
+            rejected(repeat("abs(", 100_000) + "1");
+            checkBatch(longest);
+            checkWide();
+        } catch (RuntimeException | Error e) {
+            System.out.println("FAILED: " + e);
+            System.exit(1);
+        }
+        System.out.println("ok");
+    }
+
+    /**
+     * Checks a left-leaning chain of the given operator applied to x = 1,
+     * which always evaluates to a small whole number.
+     */
+    private static void checkChain(String operator, int terms) {
+        String text = chain("1", operator, "x", terms);
+        Expression expression = Expression.compile(text);
+        double expected = 1;
+        for (int i = 1; i < terms; i++) {
+            expected = Node.Operator.values()["+-*/%".indexOf(operator)].apply(expected, 1);
+        }
+        expect(text, expected, expression.evaluate(1));
+        double[] out = new double[3];
+        expression.evaluate(new double[][]{{1, 1, 1}}, out);
+        expect(text, expected, out[2]);
+        CompiledFormula formula = expression.toFormula();
+        if (formula != null) {
+            expect(text, expected, formula.asUnary().orElseThrow().applyAsDouble(1));
+        }
+        expect(text, expected, new DecimalEvaluator().evaluate(expression, BigDecimal.ONE).doubleValue());
+        if (expression.toString().isEmpty()) {
+            throw new IllegalStateException("No text for " + operator + " chain");
+        }
+        text = chain("1", operator, "1", terms);
+        expect(text, expected, Expression.compile(text).evaluate());
+    }
+
+    /**
+     * Checks that batch mode reports a deep line as an error and goes on.
+     */
+    private static void checkBatch(int longest) {
+        String input = chain("1", "+", "1", longest) + "\n" + chain("1", "+", "1", 100_000) + "\n1+1\n";
+        StringWriter out = new StringWriter();
+        try {
+            new BatchRunner(1).run(new BufferedReader(new StringReader(input)), out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        String[] lines = out.toString().split("\n");
+        if (lines.length != 3 || !lines[0].equals(Integer.toString(longest))
+                || !lines[1].startsWith("Error: ") || !lines[2].equals("2")) {
+            throw new IllegalStateException("Batch output: " + out);
+        }
+    }
+
+    /**
+     * Checks that an expression too long for a compiled batch loop, though
+     * shallow, is still evaluated once it gets hot.
+     */
+    private static void checkWide() {
+        StringBuilder text = new StringBuilder("0");
+        double expected = 0;
+        for (int group = 0; group < 12; group++) {
+            text.append("+(");
+            for (int i = 0; i < 400; i++) {
+                int k = group * 400 + i + 2;
+                text.append(i > 0 ? "+x*" : "x*").append(k);
+                expected += k;
+            }
+            text.append(')');
+        }
+        Expression expression = Expression.compile(text);
+        if (expression.toFormula() != null) {
+            throw new IllegalStateException("Compiled a batch loop too long for its branches");
+        }
+        for (int i = 0; i <= Math.max(Expression.COMPILE_THRESHOLD, 0); i++) {
+            expect(text.toString(), expected, expression.evaluate(1));
+        }
+    }
+
+    private static void rejected(String text) {
+        try {
+            Expression.compile(text);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new IllegalStateException("Accepted an expression " + text.length() + " characters long");
+    }
+
+    private static void expect(String text, double expected, double actual) {
+        if (Double.doubleToLongBits(expected) != Double.doubleToLongBits(actual)) {
+            throw new IllegalStateException(text.substring(0, 20) + "... gives " + actual + " instead of " + expected);
+        }
+    }
+
+    private static String chain(String first, String operator, String term, int terms) {
+        StringBuilder text = new StringBuilder(first);
+        for (int i = 1; i < terms; i++) {
+            text.append(operator).append(term);
+        }
+        return text.toString();
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder repeated = new StringBuilder(text.length() * times);
+        for (int i = 0; i < times; i++) {
+            repeated.append(text);
+        }
+        return repeated.toString();
+    }
+}
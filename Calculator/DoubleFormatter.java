@@ -0,0 +1,398 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Turns doubles into text without {@link String#format}, regular
+ * expressions or temporary strings, appending straight to a caller's
+ * {@link StringBuilder} that can be reused from one value to the next.
+ * <p>
+ * Every value is first reduced to its shortest decimal form: the fewest
+ * digits that still read back as the same double. This uses Raffaello
+ * Giulietti's Schubfach algorithm, the one {@link Double#toString} uses
+ * from Java 19 on, with a table of 126-bit powers of ten built when the
+ * class loads. Two styles of text are made from those digits:
+ * <ul>
+ * <li>{@link #appendShortest} writes them in {@link Double#toString}'s
+ *     format, so the text reads back exactly;</li>
+ * <li>{@link #appendRounded} writes the calculator's display format:
+ *     integers exactly, anything else rounded half up to 10 decimals,
+ *     without trailing zeros. Like {@code String.format("%.10f")}, it
+ *     rounds the shortest digits rather than the exact binary value.
+ *     {@code String.format("%.0f")} pads the shortest digits of an integer
+ *     with zeros, which is exact only up to 17 digits, so longer integers
+ *     can differ from it in their last places.</li>
+ * </ul>
+ * A formatter keeps the last value's digits between calls, so each thread
+ * needs its own.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public final class DoubleFormatter {
+    // Digits shown after the point by appendRounded.
+    private static final int DECIMALS = 10;
+
+    private static final int P = 53;
+    private static final int W = 11;
+    private static final int Q_MIN = -1074;
+    private static final int C_TINY = 3;
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+    private static final long C_MIN = 1L << (P - 1);
+    private static final int BQ_MASK = (1 << W) - 1;
+    private static final long T_MASK = (1L << (P - 1)) - 1;
+    private static final long MASK_63 = (1L << 63) - 1;
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    // From 2^53 on every double is an integer; below 2^63 it fits a long.
+    private static final double TWO_TO_53 = 0x1p53;
+    private static final double TWO_TO_63 = 0x1p63;
+
+    // For each k, 10^-k as a 126-bit fixed point number split into its high
+    // and low 63 bits, rounded up.
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            // 10^-k = beta 2^r with 2^125 <= beta < 2^126; g = floor(beta) + 1.
+            int e = -k;
+            int r = flog2pow10(e) - 125;
+            BigInteger numerator = BigInteger.ONE;
+            BigInteger denominator = BigInteger.ONE;
+            if (e >= 0) {
+                numerator = BigInteger.TEN.pow(e);
+            } else {
+                denominator = BigInteger.TEN.pow(-e);
+            }
+            if (r >= 0) {
+                denominator = denominator.shiftLeft(r);
+            } else {
+                numerator = numerator.shiftLeft(-r);
+            }
+            BigInteger g = numerator.divide(denominator).add(BigInteger.ONE);
+            G[(k - K_MIN) << 1] = g.shiftRight(63).longValue();
+            G[(k - K_MIN) << 1 | 1] = g.longValue() & MASK_63;
+        }
+    }
+
+    // The last value's shortest digits, without trailing zeros, and the
+    // power of ten they are scaled by.
+    private long digits;
+    private int exponent;
+    // Digits of a number, most significant first.
+    private final char[] buffer = new char[POWERS_OF_TEN.length + 1];
+
+    /**
+     * Appends a value the way {@link Double#toString} writes it, with the
+     * shortest digits that read back as the same value: plain notation from
+     * 0.001 up to 10^7, such as {@code 0.1} or {@code 1234.5}, and
+     * scientific otherwise, such as {@code 1.0E-5}.
+     *
+     * @param out   The text to append to.
+     * @param value The value.
+     * @return {@code out}.
+     */
+    public StringBuilder appendShortest(StringBuilder out, double value) {
+        if (!special(out, value)) {
+            int length = fill(digits);
+            // The power of ten of the first digit.
+            int point = length + exponent - 1;
+            if (point >= -3 && point < 7) {
+                appendPlain(out, point, length);
+            } else {
+                out.append(buffer[0]).append('.');
+                if (length == 1) {
+                    out.append('0');
+                } else {
+                    out.append(buffer, 1, length - 1);
+                }
+                out.append('E').append(point);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Appends a value in the calculator's display format: integers exactly,
+     * which is the same text as {@code String.format("%.0f")} up to 17
+     * digits, and anything else as {@code String.format("%.10f")} without
+     * trailing zeros or a trailing point.
+     *
+     * @param out   The text to append to.
+     * @param value The value.
+     * @return {@code out}.
+     */
+    public StringBuilder appendRounded(StringBuilder out, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return out.append(value);
+        }
+        if (value < 0 || (value == 0 && 1 / value < 0)) {
+            out.append('-');
+        }
+        if (value == 0) {
+            return out.append('0');
+        }
+        double magnitude = Math.abs(value);
+        if (magnitude >= TWO_TO_53) {
+            return magnitude < TWO_TO_63
+                    ? appendLong(out, (long) magnitude)
+                    : out.append(new BigDecimal(magnitude).toPlainString());
+        }
+        decompose(value);
+        long d = digits;
+        int e = exponent;
+        if (e < -DECIMALS) {
+            // Round half up at the last decimal shown.
+            int drop = -DECIMALS - e;
+            long first = drop - 1 < POWERS_OF_TEN.length ? d / POWERS_OF_TEN[drop - 1] % 10 : 0;
+            d = drop < POWERS_OF_TEN.length ? d / POWERS_OF_TEN[drop] : 0;
+            if (first >= 5) {
+                d++;
+            }
+            e = -DECIMALS;
+            if (d == 0) {
+                return out.append('0');
+            }
+            while (d % 10 == 0) {
+                d /= 10;
+                e++;
+            }
+        }
+        if (e >= 0) {
+            appendLong(out, d);
+            for (int i = 0; i < e; i++) {
+                out.append('0');
+            }
+            return out;
+        }
+        long scale = POWERS_OF_TEN[-e];
+        appendLong(out, d / scale);
+        out.append('.');
+        long fraction = d % scale;
+        for (long p = scale / 10; p > fraction; p /= 10) {
+            out.append('0');
+        }
+        return appendLong(out, fraction);
+    }
+
+    /**
+     * Appends values with {@link #appendShortest}, each followed by a
+     * separator.
+     *
+     * @param out       The text to append to.
+     * @param values    The values.
+     * @param from      The index of the first value.
+     * @param to        The index after the last.
+     * @param separator The character written after each value.
+     * @return {@code out}.
+     */
+    public StringBuilder appendShortest(StringBuilder out, double[] values, int from, int to, char separator) {
+        for (int i = from; i < to; i++) {
+            appendShortest(out, values[i]).append(separator);
+        }
+        return out;
+    }
+
+    /**
+     * Appends values with {@link #appendRounded}, each followed by a
+     * separator.
+     *
+     * @param out       The text to append to.
+     * @param values    The values.
+     * @param from      The index of the first value.
+     * @param to        The index after the last.
+     * @param separator The character written after each value.
+     * @return {@code out}.
+     */
+    public StringBuilder appendRounded(StringBuilder out, double[] values, int from, int to, char separator) {
+        for (int i = from; i < to; i++) {
+            appendRounded(out, values[i]).append(separator);
+        }
+        return out;
+    }
+
+    /**
+     * Writes NaN, infinities and zeros, which need no digits, or else
+     * finds the value's digits.
+     *
+     * @return Whether the value was written.
+     */
+    private boolean special(StringBuilder out, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.append(value);
+            return true;
+        }
+        if (value == 0) {
+            out.append(1 / value < 0 ? "-0.0" : "0.0");
+            return true;
+        }
+        if (value < 0) {
+            out.append('-');
+        }
+        decompose(value);
+        return false;
+    }
+
+    /**
+     * Appends the digits in the buffer with the point after the given one.
+     */
+    private void appendPlain(StringBuilder out, int point, int length) {
+        if (point < 0) {
+            out.append("0.");
+            for (int i = -1; i > point; i--) {
+                out.append('0');
+            }
+            out.append(buffer, 0, length);
+        } else if (point + 1 >= length) {
+            out.append(buffer, 0, length);
+            for (int i = length; i <= point; i++) {
+                out.append('0');
+            }
+            out.append(".0");
+        } else {
+            out.append(buffer, 0, point + 1).append('.').append(buffer, point + 1, length - point - 1);
+        }
+    }
+
+    private StringBuilder appendLong(StringBuilder out, long number) {
+        return out.append(buffer, 0, fill(number));
+    }
+
+    /**
+     * Puts a non-negative number's digits in the buffer.
+     *
+     * @return The number of digits.
+     */
+    private int fill(long number) {
+        int length = 1;
+        while (length < POWERS_OF_TEN.length && number >= POWERS_OF_TEN[length]) {
+            length++;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            buffer[i] = (char) ('0' + number % 10);
+            number /= 10;
+        }
+        return length;
+    }
+
+    /**
+     * Sets {@link #digits} and {@link #exponent} to the shortest decimal
+     * that reads back as the magnitude of a finite, nonzero value.
+     */
+    private void decompose(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        long t = bits & T_MASK;
+        int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+        if (bq != 0) {
+            // A normal value: c 2^q with q = -mq.
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            if (0 < mq && mq < P) {
+                // An integer below 2^53 is its own shortest form.
+                long f = c >> mq;
+                if (f << mq == c) {
+                    setDigits(f, 0);
+                    return;
+                }
+            }
+            toDecimal(-mq, c, 0);
+        } else if (t < C_TINY) {
+            toDecimal(Q_MIN, 10 * t, -1);
+        } else {
+            toDecimal(Q_MIN, t, 0);
+        }
+    }
+
+    /**
+     * Finds the shortest decimal in the rounding interval of c 2^q.
+     */
+    private void toDecimal(int q, long c, int dk) {
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            // The interval below a power of two is half as wide.
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        long g1 = G[(k - K_MIN) << 1];
+        long g0 = G[(k - K_MIN) << 1 | 1];
+
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            // Try one digit fewer first.
+            long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                setDigits(upin ? sp10 : tp10, k);
+                return;
+            }
+        }
+
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            setDigits(uin ? s : t, k + dk);
+            return;
+        }
+        // Both candidates are in the interval; take the closer, or the even one.
+        long cmp = vb - ((s + t) << 1);
+        setDigits(cmp < 0 || (cmp == 0 && (s & 0x1) == 0) ? s : t, k + dk);
+    }
+
+    private void setDigits(long f, int e) {
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+        digits = f;
+        exponent = e;
+    }
+
+    /**
+     * Multiplies by g and rounds to odd: the high bits of the product, with
+     * the lowest bit set if any bits below were.
+     */
+    private static long rop(long g1, long g0, long cp) {
+        long x1 = Math.multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = Math.multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | ((z & MASK_63) + MASK_63) >>> 63;
+    }
+
+    // floor(e log10(2)).
+    private static int flog10pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    // floor(e log10(2) + log10(3/4)).
+    private static int flog10threeQuartersPow2(int e) {
+        return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    // floor(e log2(10)).
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+}
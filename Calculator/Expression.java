@@ -0,0 +1,280 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compiled calculator expression: the source text parsed once into an
+ * immutable syntax tree that can be evaluated any number of times, from
+ * any number of threads, without parsing again.
+ * <p>
+ * Evaluation gives exactly the same results and errors as evaluating the
+ * text directly; malformed text is rejected when it is compiled. Constant
+ * parts are worked out when the expression is compiled, and a part that is
+ * repeated is evaluated once per row, without changing any result.
+ * <p>
+ * Names that are not functions, such as {@code x} or {@code rate}, are
+ * variables. Their values are passed in when the expression is evaluated,
+ * in the order of {@link #getVariables()}: one value each for a single
+ * result, or one column each for a whole batch of rows at once.
+ * <p>
+ * An expression evaluated often, more than
+ * {@link #COMPILE_THRESHOLD} times counting each row of a batch, is
+ * compiled to bytecode and from then on runs as a {@link CompiledFormula},
+ * with the same results.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public final class Expression {
+    /**
+     * The number of evaluations after which an expression is compiled to
+     * bytecode; set with the {@code calculator.compileThreshold} system
+     * property. Negative means never.
+     */
+    public static final int COMPILE_THRESHOLD = Integer.getInteger("calculator.compileThreshold", 10_000);
+
+    // The text as given, normalized only when asked for.
+    private final String text;
+    private final Node root;
+    // The tree as parsed, before optimizing, for exact evaluation.
+    private final Node parsed;
+    private final List<String> variables;
+    // The tree flattened for batch evaluation.
+    private final Program program;
+    // Set once the expression is hot; null until then.
+    private volatile CompiledFormula formula;
+    // Evaluations so far. Racy updates only delay compiling a little.
+    private long evaluations;
+    private boolean uncompilable;
+
+    private Expression(String text, Node parsed, List<String> variables) {
+        this.text = text;
+        this.parsed = parsed;
+        this.root = Optimizer.optimize(parsed);
+        this.variables = Collections.unmodifiableList(variables);
+        this.program = Program.of(root);
+    }
+
+    /**
+     * Compiles an expression. Whitespace is ignored and names are not case
+     * sensitive. The text is read in place, so a {@code char[]} can be
+     * passed with {@link java.nio.CharBuffer#wrap(char[])}. Prefer
+     * {@link Calculator#compile(String)}, which caches.
+     *
+     * @param expression The expression text.
+     * @return The compiled expression.
+     * @throws IllegalArgumentException If the expression is malformed.
+     */
+    public static Expression compile(CharSequence expression) {
+        Parser parser = new Parser(expression);
+        return new Expression(expression.toString(), parser.parse(), parser.variables());
+    }
+
+    /**
+     * Removes whitespace and lower-cases an expression, the form it is
+     * parsed and cached in. Text that is already normalized is returned as
+     * is, without copying.
+     *
+     * @param expression The expression text.
+     * @return The normalized text.
+     */
+    public static String normalize(String expression) {
+        int length = expression.length();
+        int i = 0;
+        while (i < length && !needsNormalizing(expression.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return expression;
+        }
+        StringBuilder normalized = new StringBuilder(length).append(expression, 0, i);
+        for (; i < length; i++) {
+            char c = expression.charAt(i);
+            if (!isWhitespace(c)) {
+                normalized.append(Character.toLowerCase(c));
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static boolean needsNormalizing(char c) {
+        return isWhitespace(c) || Character.toLowerCase(c) != c;
+    }
+
+    // The characters the regex \s matches.
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param values The value of each variable, in the order of
+     *               {@link #getVariables()}; none if there are no variables.
+     * @return The result.
+     * @throws IllegalArgumentException If a variable has no value.
+     * @throws ArithmeticException      On division or modulo by zero.
+     */
+    public double evaluate(double... values) {
+        if (values.length < variables.size()) {
+            throw new IllegalArgumentException("No value for variable: " + variables.get(values.length));
+        }
+        CompiledFormula hot = tier(1);
+        return hot != null ? hot.evaluate(values) : root.evaluate(values);
+    }
+
+    /**
+     * Evaluates the expression for every row of a batch.
+     *
+     * @param columns The values of each variable, one column per variable
+     *                in the order of {@link #getVariables()}, each at least
+     *                as long as {@code out}.
+     * @param out     Receives the result for each row.
+     * @throws IllegalArgumentException If a column is missing or too short.
+     * @throws ArithmeticException      On division or modulo by zero in any row.
+     */
+    public void evaluate(double[][] columns, double[] out) {
+        evaluate(columns, out, 0, out.length);
+    }
+
+    /**
+     * Evaluates the expression for a range of rows of a batch. Rows outside
+     * the range are neither read nor written.
+     *
+     * @param columns The values of each variable, one column per variable
+     *                in the order of {@link #getVariables()}.
+     * @param out     Receives the result for each row, at the row's index.
+     * @param from    The first row.
+     * @param to      The row after the last.
+     * @throws IllegalArgumentException If a column is missing or too short.
+     * @throws ArithmeticException      On division or modulo by zero in any row.
+     */
+    public void evaluate(double[][] columns, double[] out, int from, int to) {
+        checkBatch(columns, out, from, to);
+        run(columns, out, from, to);
+    }
+
+    /**
+     * Checks the arguments of a batch evaluation.
+     *
+     * @throws IllegalArgumentException If a column is missing or too short,
+     *                                  or the range is outside {@code out}.
+     */
+    void checkBatch(double[][] columns, double[] out, int from, int to) {
+        if (from < 0 || from > to || to > out.length) {
+            throw new IllegalArgumentException("Bad row range " + from + " to " + to);
+        }
+        if (columns.length < variables.size()) {
+            throw new IllegalArgumentException("No column for variable: " + variables.get(columns.length));
+        }
+        for (int i = 0; i < variables.size(); i++) {
+            if (columns[i].length < to) {
+                throw new IllegalArgumentException("Column for " + variables.get(i) + " has only "
+                        + columns[i].length + " rows");
+            }
+        }
+    }
+
+    /**
+     * Evaluates a range of rows whose arguments were already checked with
+     * {@link #checkBatch}.
+     */
+    void run(double[][] columns, double[] out, int from, int to) {
+        CompiledFormula hot = tier(to - from);
+        if (hot == null) {
+            program.run(columns, out, from, to);
+            return;
+        }
+        try {
+            hot.evaluate(columns, out, from, to);
+        } catch (ArithmeticException e) {
+            // Run again for the error naming the row.
+            program.run(columns, out, from, to);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the compiled form once the expression is hot, compiling it when
+     * it gets there.
+     *
+     * @param count The number of evaluations about to be done.
+     * @return The compiled form, or null to interpret.
+     */
+    private CompiledFormula tier(int count) {
+        CompiledFormula hot = formula;
+        if (hot != null || COMPILE_THRESHOLD < 0 || uncompilable) {
+            return hot;
+        }
+        evaluations += count;
+        if (evaluations > COMPILE_THRESHOLD) {
+            hot = BytecodeCompiler.compile(root, variables.size());
+            uncompilable = hot == null;
+            formula = hot;
+        }
+        return hot;
+    }
+
+    /**
+     * Compiles the expression to bytecode now, without waiting for it to
+     * get hot. Later evaluations of this expression use the result too.
+     *
+     * @return The compiled formula, or null if the expression is too large
+     *         to compile; it is then always interpreted.
+     */
+    public CompiledFormula toFormula() {
+        CompiledFormula hot = formula;
+        if (hot == null && !uncompilable) {
+            hot = BytecodeCompiler.compile(root, variables.size());
+            uncompilable = hot == null;
+            formula = hot;
+        }
+        return hot;
+    }
+
+    /**
+     * Gets the tree as parsed, before it was optimized in double arithmetic.
+     *
+     * @return The root of the tree.
+     */
+    Node parsed() {
+        return parsed;
+    }
+
+    /**
+     * Gets the expression's variables, in order of first appearance.
+     *
+     * @return The variable names, lower case.
+     */
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Finds a variable's position in {@link #getVariables()}.
+     *
+     * @param name The variable name; case does not matter.
+     * @return The index, or -1 if the expression does not use the variable.
+     */
+    public int indexOf(String name) {
+        return variables.indexOf(normalize(name));
+    }
+
+    /**
+     * Gets the normalized text the expression was compiled from.
+     *
+     * @return The text.
+     */
+    public String getSource() {
+        return normalize(text);
+    }
+
+    /**
+     * Shows the optimized tree, fully parenthesized.
+     *
+     * @return The tree as text.
+     */
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+}
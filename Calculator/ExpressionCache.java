@@ -0,0 +1,64 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least-recently-used cache of compiled expressions, keyed by
+ * normalized expression text, so text that is evaluated again skips
+ * parsing. Safe for use from several threads; lookups hold the cache's lock
+ * only for the map access, never while parsing.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class ExpressionCache {
+    private final Map<String, Expression> entries;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity The most expressions kept.
+     */
+    public ExpressionCache(int capacity) {
+        this.entries = new LinkedHashMap<String, Expression>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets the compiled form of an expression, compiling and caching it on
+     * a miss. Two threads missing on the same text at once may both compile
+     * it; either result is fine, since expressions are immutable.
+     *
+     * @param expression The expression text.
+     * @return The compiled expression.
+     * @throws IllegalArgumentException If the expression is malformed.
+     */
+    public Expression get(String expression) {
+        String key = Expression.normalize(expression);
+        Expression compiled;
+        synchronized (entries) {
+            compiled = entries.get(key);
+        }
+        if (compiled == null) {
+            compiled = Expression.compile(key);
+            synchronized (entries) {
+                entries.put(key, compiled);
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Gets the number of cached expressions.
+     *
+     * @return The size.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
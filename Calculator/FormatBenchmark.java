@@ -0,0 +1,145 @@
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares ways of turning results into text: the calculator's original
+ * {@code String.format} and regular expression code, {@link Double#toString},
+ * and {@link DoubleFormatter}'s rounded and shortest formats, written with
+ * the batch API into one reused {@link StringBuilder}. It reports the time
+ * and values per second of each, and checks that the rounded format gives
+ * the original text for every value and for integers from 2^53 to 10^21.
+ * <p>
+ * The values are typical results: random magnitudes from 10^-6 to 10^9,
+ * half of them with few decimals like prices and half with a full
+ * seventeen digits.
+ * <p>
+ * Options: {@code --values=N} (default 2000000) and {@code --runs=N} timed
+ * runs per method, best kept (default 5).
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class FormatBenchmark {
+
+    /**
+     * The main method that runs the benchmark.
+     *
+     * @param args Command-line options, see above.
+     */
+    public static void main(String[] args) {
+        int count = 2_000_000;
+        int runs = 5;
+        for (String arg : args) {
+            if (arg.startsWith("--values=")) {
+                count = Integer.parseInt(arg.substring("--values=".length()));
+            } else if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(arg.substring("--runs=".length()));
+            } else {
+                System.err.println("Usage: java FormatBenchmark [--values=N] [--runs=N]");
+                return;
+            }
+        }
+
+        double[] values = values(count, new Random(1));
+        DoubleFormatter formatter = new DoubleFormatter();
+        StringBuilder out = new StringBuilder(count * 24);
+        check(values, formatter);
+        checkIntegers(new Random(2), formatter);
+
+        System.out.printf(Locale.ROOT, "%d values%n", count);
+        System.out.printf(Locale.ROOT, "%-22s %10s %12s %8s%n", "method", "ms", "Mvalues/s", "speedup");
+        long original = 0;
+        for (int method = 0; method < 4; method++) {
+            long best = Long.MAX_VALUE;
+            // The first run warms up the JIT and is not counted.
+            for (int run = 0; run <= runs; run++) {
+                out.setLength(0);
+                long start = System.nanoTime();
+                switch (method) {
+                    case 0:
+                        for (double value : values) {
+                            out.append(original(value)).append('\n');
+                        }
+                        break;
+                    case 1:
+                        for (double value : values) {
+                            out.append(value).append('\n');
+                        }
+                        break;
+                    case 2:
+                        formatter.appendRounded(out, values, 0, count, '\n');
+                        break;
+                    default:
+                        formatter.appendShortest(out, values, 0, count, '\n');
+                        break;
+                }
+                long nanos = System.nanoTime() - start;
+                if (run > 0) {
+                    best = Math.min(best, nanos);
+                }
+            }
+            if (method == 0) {
+                original = best;
+            }
+            String[] names = {"String.format + regex", "Double.toString", "appendRounded", "appendShortest"};
+            System.out.printf(Locale.ROOT, "%-22s %10.1f %12.2f %8.2f%n",
+                    names[method], best / 1e6, count * 1e3 / best, (double) original / best);
+        }
+    }
+
+    /**
+     * The calculator's original result formatting.
+     */
+    private static String original(double result) {
+        if (result == Math.floor(result) && !Double.isInfinite(result)) {
+            return String.format("%.0f", result);
+        }
+        String formatted = String.format("%.10f", result).replaceAll("0+$", "").replaceAll("\\.$", "");
+        return formatted.isEmpty() ? "0" : formatted;
+    }
+
+    private static double[] values(int count, Random random) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            double magnitude = Math.pow(10, random.nextInt(16) - 6);
+            values[i] = i % 2 == 0
+                    ? Math.round(random.nextGaussian() * 100_000) / 100.0
+                    : random.nextGaussian() * magnitude;
+        }
+        return values;
+    }
+
+    private static void check(double[] values, DoubleFormatter formatter) {
+        StringBuilder text = new StringBuilder();
+        for (double value : values) {
+            text.setLength(0);
+            String expected = original(value);
+            if (!formatter.appendRounded(text, value).toString().equals(expected)) {
+                throw new IllegalStateException(value + " gives " + text + " instead of " + expected);
+            }
+        }
+    }
+
+    /**
+     * Checks integers too large for every one to be a double. Up to 17
+     * digits the rounded format must match {@code String.format("%.0f")};
+     * beyond that {@code String.format} pads its shortest digits with zeros,
+     * so it must match the exact value instead.
+     */
+    private static void checkIntegers(Random random, DoubleFormatter formatter) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200_000; i++) {
+            double value = Math.scalb(1 + random.nextDouble(), 53 + random.nextInt(17));
+            value = i % 2 == 0 ? value : -value;
+            String expected = String.format("%.0f", value);
+            if (expected.length() > (value < 0 ? 18 : 17)) {
+                expected = new BigDecimal(value).toPlainString();
+            }
+            text.setLength(0);
+            if (!formatter.appendRounded(text, value).toString().equals(expected)) {
+                throw new IllegalStateException(value + " gives " + text + " instead of " + expected);
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Reads an expression a character at a time for the {@link Parser},
+ * straight from the caller's text. It skips whitespace and lower-cases as
+ * it goes, so the parser sees the normalized expression without it ever
+ * being copied, and it reads numbers and names in place: tokenizing
+ * allocates nothing, except a name's string the first time a variable
+ * appears.
+ * <p>
+ * Numbers of up to 15 significant digits and 22 decimals are computed
+ * directly as one correctly rounded division, which is exactly what
+ * {@link Double#parseDouble} returns for them; longer ones, and malformed
+ * ones such as {@code 2..3}, go through {@code parseDouble}. Either way the
+ * literal's exact decimal value is kept too, for {@link DecimalEvaluator}.
+ * <p>
+ * Function names are packed five bits a letter into an int and looked up in
+ * a perfect hash table, so recognizing one compares no strings.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+final class Lexer {
+    private static final int MAX_FAST_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    // Names longer than this cannot be functions and are not packed.
+    private static final int MAX_PACKED = 6;
+
+    private static final Node.Function[] FUNCTIONS;
+    private static final int[] FUNCTION_CODES;
+
+    static {
+        FUNCTIONS = perfectTable(Node.Function.values());
+        FUNCTION_CODES = new int[FUNCTIONS.length];
+        for (int i = 0; i < FUNCTIONS.length; i++) {
+            FUNCTION_CODES[i] = FUNCTIONS[i] != null ? pack(FUNCTIONS[i].label) : -1;
+        }
+    }
+
+    private final CharSequence text;
+    private final int end;
+    // The index of the current character, or end once past the last.
+    private int pos;
+    // The current character, lower-cased, or -1 at the end.
+    private int ch;
+    // The last name read: where it starts and ends, and its packed letters.
+    private int nameStart;
+    private int nameEnd;
+    private int nameCode;
+
+    /**
+     * Creates a lexer positioned on the first character.
+     *
+     * @param text The expression text, in any case and with any whitespace.
+     */
+    Lexer(CharSequence text) {
+        this.text = text;
+        this.end = text.length();
+        this.pos = -1;
+        next();
+    }
+
+    /**
+     * Gets the current character.
+     *
+     * @return The character, lower case, or -1 at the end.
+     */
+    int current() {
+        return ch;
+    }
+
+    /**
+     * Moves to the next character that is not whitespace.
+     */
+    void next() {
+        while (++pos < end) {
+            char c = text.charAt(pos);
+            if (!Expression.isWhitespace(c)) {
+                ch = Character.toLowerCase(c);
+                return;
+            }
+        }
+        pos = end;
+        ch = -1;
+    }
+
+    /**
+     * Skips the current character if it is the given one.
+     *
+     * @return Whether it was skipped.
+     */
+    boolean eat(int c) {
+        if (ch == c) {
+            next();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads a number: digits with at most one decimal point.
+     *
+     * @return The number, valued the same as by {@link Double#parseDouble}.
+     * @throws NumberFormatException If it is not a number, such as {@code 2..3}.
+     */
+    Node.Constant number() {
+        int start = pos;
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = 0;
+        int points = 0;
+        boolean any = false;
+        while ((ch >= '0' && ch <= '9') || ch == '.') {
+            if (ch == '.') {
+                points++;
+            } else {
+                any = true;
+                if (points > 0) {
+                    decimals++;
+                }
+                if (digits > 0 || ch != '0') {
+                    digits++;
+                }
+                if (digits <= MAX_FAST_DIGITS) {
+                    mantissa = mantissa * 10 + (ch - '0');
+                }
+            }
+            next();
+        }
+        boolean fast = any && points <= 1 && digits <= MAX_FAST_DIGITS && decimals < POWERS_OF_TEN.length;
+        if (!fast) {
+            String literal = normalized(start, pos);
+            return new Node.Constant(Double.parseDouble(literal), 0, 0, literal);
+        }
+        double value = decimals == 0 ? mantissa : mantissa / POWERS_OF_TEN[decimals];
+        return new Node.Constant(value, mantissa, decimals, null);
+    }
+
+    /**
+     * Reads a name: letters and underscores.
+     */
+    void name() {
+        nameStart = pos;
+        int length = 0;
+        int code = 0;
+        while ((ch >= 'a' && ch <= 'z') || ch == '_') {
+            if (++length <= MAX_PACKED) {
+                code = code << 5 | letter(ch);
+            }
+            next();
+        }
+        nameEnd = pos;
+        nameCode = length <= MAX_PACKED ? code : -1;
+    }
+
+    /**
+     * Gets the function the last name read refers to.
+     *
+     * @return The function, or null if the name is not a function.
+     */
+    Node.Function function() {
+        if (nameCode < 0) {
+            return null;
+        }
+        int slot = nameCode % FUNCTIONS.length;
+        return FUNCTION_CODES[slot] == nameCode ? FUNCTIONS[slot] : null;
+    }
+
+    /**
+     * Checks whether the last name read is the given one.
+     *
+     * @param name A normalized name.
+     * @return Whether they are the same.
+     */
+    boolean nameEquals(String name) {
+        int i = 0;
+        for (int p = nameStart; p < nameEnd; p++) {
+            char c = text.charAt(p);
+            if (Expression.isWhitespace(c)) {
+                continue;
+            }
+            if (i == name.length() || Character.toLowerCase(c) != name.charAt(i++)) {
+                return false;
+            }
+        }
+        return i == name.length();
+    }
+
+    /**
+     * Gets the last name read as a string.
+     *
+     * @return The normalized name.
+     */
+    String nameString() {
+        return normalized(nameStart, nameEnd);
+    }
+
+    /**
+     * Gets part of the text, normalized.
+     */
+    private String normalized(int from, int to) {
+        StringBuilder builder = new StringBuilder(to - from);
+        for (int p = from; p < to; p++) {
+            char c = text.charAt(p);
+            if (!Expression.isWhitespace(c)) {
+                builder.append(Character.toLowerCase(c));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Finds the smallest table in which no two functions' codes collide.
+     */
+    private static Node.Function[] perfectTable(Node.Function[] functions) {
+        for (int size = functions.length; ; size++) {
+            Node.Function[] table = new Node.Function[size];
+            boolean collided = false;
+            for (Node.Function function : functions) {
+                int slot = pack(function.label) % size;
+                collided |= table[slot] != null;
+                table[slot] = function;
+            }
+            if (!collided) {
+                return table;
+            }
+        }
+    }
+
+    private static int pack(String name) {
+        int code = 0;
+        for (int i = 0; i < name.length(); i++) {
+            code = code << 5 | letter(name.charAt(i));
+        }
+        return code;
+    }
+
+    // Letters are 1 to 26 and the underscore 27, so no name packs to zero.
+    private static int letter(int c) {
+        return c == '_' ? 27 : c - 'a' + 1;
+    }
+}
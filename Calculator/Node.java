@@ -0,0 +1,334 @@
+import java.math.BigDecimal;
+
+/**
+ * A node of a compiled expression's syntax tree. Nodes are immutable, so a
+ * compiled {@link Expression} can be shared and evaluated from any number
+ * of threads.
+ * <p>
+ * Evaluating a tree does the same arithmetic, in the same order, as the
+ * calculator's original evaluate-while-parsing code, so results are
+ * identical to the last bit.
+ * <p>
+ * Nodes are equal when their subtrees are structurally equal; constants
+ * compare by bit pattern, so {@code 0.0} and {@code -0.0} differ. The
+ * {@link Optimizer} uses this to share repeated subtrees, so a tree may be
+ * a DAG.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+abstract class Node {
+    // The number of nodes on the longest path from this one to a leaf.
+    final int depth;
+
+    Node(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * The binary operators of the grammar.
+     */
+    enum Operator {
+        ADD('+'),
+        SUBTRACT('-'),
+        MULTIPLY('*'),
+        DIVIDE('/'),
+        MODULO('%'),
+        POWER('^');
+
+        final char symbol;
+
+        Operator(char symbol) {
+            this.symbol = symbol;
+        }
+
+        /**
+         * Applies the operator.
+         *
+         * @param x The left operand.
+         * @param y The right operand.
+         * @return The result.
+         * @throws ArithmeticException On division or modulo by zero.
+         */
+        double apply(double x, double y) {
+            switch (this) {
+                case ADD:
+                    return x + y;
+                case SUBTRACT:
+                    return x - y;
+                case MULTIPLY:
+                    return x * y;
+                case DIVIDE:
+                    if (y == 0) throw new ArithmeticException("Division by zero");
+                    return x / y;
+                case MODULO:
+                    if (y == 0) throw new ArithmeticException("Modulo by zero");
+                    return x % y;
+                default:
+                    return Math.pow(x, y);
+            }
+        }
+    }
+
+    /**
+     * The scientific functions of the grammar. Trigonometric functions take
+     * degrees.
+     */
+    enum Function {
+        SQRT,
+        SIN,
+        COS,
+        TAN,
+        LOG,
+        LN,
+        ABS;
+
+        final String label = name().toLowerCase();
+
+        /**
+         * Applies the function.
+         *
+         * @param x The argument.
+         * @return The result.
+         */
+        double apply(double x) {
+            switch (this) {
+                case SQRT:
+                    return Math.sqrt(x);
+                case SIN:
+                    return Math.sin(Math.toRadians(x));
+                case COS:
+                    return Math.cos(Math.toRadians(x));
+                case TAN:
+                    return Math.tan(Math.toRadians(x));
+                case LOG:
+                    return Math.log10(x);
+                case LN:
+                    return Math.log(x);
+                default:
+                    return Math.abs(x);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the subtree.
+     *
+     * @param values The variables' values, by variable index.
+     * @return The value.
+     * @throws ArithmeticException On division or modulo by zero.
+     */
+    abstract double evaluate(double[] values);
+
+    /**
+     * A numeric literal, or a value the {@link Optimizer} computed.
+     */
+    static final class Constant extends Node {
+        final double value;
+        // A literal's exact value is unscaled * 10^-scale, or the text when
+        // it has too many digits for a long; scale is -1 for computed values.
+        final long unscaled;
+        final int scale;
+        final String text;
+
+        Constant(double value) {
+            this(value, 0, -1, null);
+        }
+
+        Constant(double value, long unscaled, int scale, String text) {
+            super(1);
+            this.value = value;
+            this.unscaled = unscaled;
+            this.scale = scale;
+            this.text = text;
+        }
+
+        /**
+         * Gets the constant's exact value: a literal's value as written,
+         * rather than the nearest double.
+         *
+         * @return The value.
+         */
+        BigDecimal decimal() {
+            if (text != null) {
+                return new BigDecimal(text);
+            }
+            return scale < 0 ? BigDecimal.valueOf(value) : BigDecimal.valueOf(unscaled, scale);
+        }
+
+        @Override
+        double evaluate(double[] values) {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Constant
+                    && Double.doubleToLongBits(value) == Double.doubleToLongBits(((Constant) o).value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Double.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return Double.toString(value);
+        }
+    }
+
+    /**
+     * A named variable, bound when the expression is evaluated.
+     */
+    static final class Variable extends Node {
+        final String name;
+        // The variable's position in the expression's variable list.
+        final int index;
+
+        Variable(String name, int index) {
+            super(1);
+            this.name = name;
+            this.index = index;
+        }
+
+        @Override
+        double evaluate(double[] values) {
+            return values[index];
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Variable && index == ((Variable) o).index;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 + index;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Unary minus. Unary plus needs no node.
+     */
+    static final class Negate extends Node {
+        final Node operand;
+        private final int hash;
+
+        Negate(Node operand) {
+            super(operand.depth + 1);
+            this.operand = operand;
+            this.hash = -operand.hashCode();
+        }
+
+        @Override
+        double evaluate(double[] values) {
+            return -operand.evaluate(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Negate)) return false;
+            Negate other = (Negate) o;
+            return hash == other.hash && operand.equals(other.operand);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "(-" + operand + ")";
+        }
+    }
+
+    /**
+     * A binary operation. The left operand is evaluated first.
+     */
+    static final class Binary extends Node {
+        final Operator operator;
+        final Node left;
+        final Node right;
+        private final int hash;
+
+        Binary(Operator operator, Node left, Node right) {
+            super(Math.max(left.depth, right.depth) + 1);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.hash = (operator.ordinal() * 31 + left.hashCode()) * 31 + right.hashCode();
+        }
+
+        @Override
+        double evaluate(double[] values) {
+            double x = left.evaluate(values);
+            return operator.apply(x, right.evaluate(values));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Binary)) return false;
+            Binary other = (Binary) o;
+            return hash == other.hash && operator == other.operator
+                    && left.equals(other.left) && right.equals(other.right);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " " + operator.symbol + " " + right + ")";
+        }
+    }
+
+    /**
+     * A function call.
+     */
+    static final class Call extends Node {
+        final Function function;
+        final Node argument;
+        private final int hash;
+
+        Call(Function function, Node argument) {
+            super(argument.depth + 1);
+            this.function = function;
+            this.argument = argument;
+            this.hash = function.ordinal() * 961 + argument.hashCode();
+        }
+
+        @Override
+        double evaluate(double[] values) {
+            return function.apply(argument.evaluate(values));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Call)) return false;
+            Call other = (Call) o;
+            return hash == other.hash && function == other.function && argument.equals(other.argument);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return function.label + "(" + argument + ")";
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Simplifies a parsed expression tree without changing a single bit of any
+ * result. It makes one bottom-up pass that:
+ * <ul>
+ * <li>folds subtrees without variables, functions included, into constants,
+ *     unless evaluating them throws, so {@code 1/0} still fails when the
+ *     expression is evaluated rather than when it is compiled;</li>
+ * <li>drops identities that are exact for every double: {@code x*1},
+ *     {@code 1*x}, {@code x/1}, {@code x-0}, {@code x^1} and
+ *     {@code -(-x)}. {@code x+0} is kept, since {@code -0.0 + 0.0} is
+ *     {@code 0.0}; {@code x+(-0)} is dropped instead;</li>
+ * <li>shares structurally equal subtrees, so {@code sin(x)*sin(x)} holds
+ *     one {@code sin(x)} node, which {@link Program} and
+ *     {@link BytecodeCompiler} evaluate once per row.</li>
+ * </ul>
+ * Nothing is reordered, so anything that throws still throws in the same
+ * place.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+final class Optimizer {
+    private static final double[] NO_VALUES = new double[0];
+    private static final long ONE = Double.doubleToLongBits(1.0);
+    private static final long ZERO = Double.doubleToLongBits(0.0);
+    private static final long NEGATIVE_ZERO = Double.doubleToLongBits(-0.0);
+
+    // The one instance kept of each distinct subtree.
+    private final Map<Node, Node> shared = new HashMap<>();
+
+    private Optimizer() {
+    }
+
+    /**
+     * Optimizes a tree.
+     *
+     * @param root The root of the parsed tree.
+     * @return The root of the optimized tree, which may share subtrees.
+     */
+    static Node optimize(Node root) {
+        return new Optimizer().rewrite(root);
+    }
+
+    private Node rewrite(Node node) {
+        Node result;
+        if (node instanceof Node.Negate) {
+            Node operand = rewrite(((Node.Negate) node).operand);
+            if (operand instanceof Node.Negate) {
+                result = ((Node.Negate) operand).operand;
+            } else {
+                result = fold(new Node.Negate(operand), operand instanceof Node.Constant);
+            }
+        } else if (node instanceof Node.Binary) {
+            Node.Binary binary = (Node.Binary) node;
+            Node left = rewrite(binary.left);
+            Node right = rewrite(binary.right);
+            result = identity(binary.operator, left, right);
+            if (result == null) {
+                result = fold(new Node.Binary(binary.operator, left, right),
+                        left instanceof Node.Constant && right instanceof Node.Constant);
+            }
+        } else if (node instanceof Node.Call) {
+            Node.Call call = (Node.Call) node;
+            Node argument = rewrite(call.argument);
+            result = fold(new Node.Call(call.function, argument), argument instanceof Node.Constant);
+        } else {
+            result = node;
+        }
+        Node existing = shared.putIfAbsent(result, result);
+        return existing != null ? existing : result;
+    }
+
+    /**
+     * Replaces a node whose operands are all constants with its value.
+     */
+    private static Node fold(Node node, boolean constant) {
+        if (!constant) {
+            return node;
+        }
+        try {
+            return new Node.Constant(node.evaluate(NO_VALUES));
+        } catch (ArithmeticException e) {
+            // Leave it to throw when evaluated.
+            return node;
+        }
+    }
+
+    /**
+     * Simplifies a binary operation that leaves one operand unchanged.
+     *
+     * @return The unchanged operand, or null if there is no identity.
+     */
+    private static Node identity(Node.Operator operator, Node left, Node right) {
+        switch (operator) {
+            case MULTIPLY:
+                if (is(right, ONE)) return left;
+                if (is(left, ONE)) return right;
+                return null;
+            case DIVIDE:
+            case POWER:
+                return is(right, ONE) ? left : null;
+            case ADD:
+                if (is(right, NEGATIVE_ZERO)) return left;
+                if (is(left, NEGATIVE_ZERO)) return right;
+                return null;
+            case SUBTRACT:
+                return is(right, ZERO) ? left : null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean is(Node node, long bits) {
+        return node instanceof Node.Constant && Double.doubleToLongBits(((Node.Constant) node).value) == bits;
+    }
+}
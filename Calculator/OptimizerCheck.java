@@ -0,0 +1,241 @@
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Checks that the {@link Optimizer} changes no result by a single bit.
+ * Random expressions in {@code x} and {@code y}, full of the identities,
+ * constants and repeated subtrees the optimizer rewrites, are evaluated
+ * for inputs that include {@code 0}, {@code -0}, NaN and both infinities,
+ * through the tree as parsed, the optimized tree, the columnar
+ * {@link Program} and the generated bytecode. Every path must give the
+ * same bits, or every path must throw. All NaNs count as the same, since
+ * Java leaves the bits of a computed NaN unspecified.
+ * <p>
+ * Usage: {@code java OptimizerCheck [COUNT] [SEED]}, by default 50000
+ * expressions from seed 1. Prints {@code ok} or the first difference, and
+ * exits with status 1 on a difference.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class OptimizerCheck {
+    private static final String[] CONSTANTS = {
+            "0", "(-0)", "1", "(-1)", "2", "0.5", "3", "0.1", "10^400", "(-10^400)", "sqrt(-1)", "10^308"
+    };
+    private static final String[] OPERATORS = {"+", "-", "*", "/", "%", "^"};
+    private static final String[] FUNCTIONS = {"sqrt", "sin", "cos", "tan", "log", "ln", "abs"};
+    private static final double[] INPUTS = {
+            0.0, -0.0, 1, -1, 0.5, 2, 3, 1e308, -1e-320,
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+    };
+
+    private final Random random;
+    // The rows of every pair of inputs, as columns for x and y.
+    private final double[][] columns = new double[2][INPUTS.length * INPUTS.length];
+
+    private OptimizerCheck(long seed) {
+        random = new Random(seed);
+        for (int i = 0; i < INPUTS.length; i++) {
+            for (int j = 0; j < INPUTS.length; j++) {
+                columns[0][i * INPUTS.length + j] = INPUTS[i];
+                columns[1][i * INPUTS.length + j] = INPUTS[j];
+            }
+        }
+    }
+
+    /**
+     * The main method that runs the check.
+     *
+     * @param args The number of expressions and the random seed, both
+     *             optional.
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        OptimizerCheck check = new OptimizerCheck(seed);
+        for (int i = 0; i < count; i++) {
+            String text = check.expression(4);
+            String failure = check.check(text);
+            if (failure != null) {
+                System.out.println("FAILED: " + text + ": " + failure);
+                System.exit(1);
+            }
+        }
+        System.out.println("ok");
+    }
+
+    /**
+     * Evaluates one expression every way for every row.
+     *
+     * @return A description of the first difference, or null if there is none.
+     */
+    private String check(String text) {
+        Expression expression = Expression.compile(text);
+        int variables = expression.getVariables().size();
+        int rows = columns[0].length;
+        // The reference: the tree as parsed, one row at a time.
+        double[] expected = new double[rows];
+        boolean[] thrown = new boolean[rows];
+        boolean anyThrows = false;
+        for (int row = 0; row < rows; row++) {
+            double[] values = row(expression, row);
+            try {
+                expected[row] = expression.parsed().evaluate(values);
+            } catch (ArithmeticException e) {
+                thrown[row] = true;
+                anyThrows = true;
+            }
+        }
+        String difference = compareRows("optimized tree", expression, expected, thrown, expression::evaluate);
+        if (difference == null) {
+            difference = compareBatch("program", expression, expected, anyThrows,
+                    (in, out) -> expression.evaluate(in, out));
+        }
+        CompiledFormula formula = expression.toFormula();
+        if (difference != null || formula == null) {
+            return difference;
+        }
+        difference = compareRows("bytecode", expression, expected, thrown, formula::evaluate);
+        if (difference != null) {
+            return difference;
+        }
+        Optional<DoubleUnaryOperator> unary = formula.asUnary();
+        if (unary.isPresent() != (variables <= 1)) {
+            return "unary view present for " + variables + " variables";
+        }
+        if (unary.isPresent()) {
+            DoubleUnaryOperator function = unary.get();
+            difference = compareRows("unary bytecode", expression, expected, thrown,
+                    values -> function.applyAsDouble(values.length > 0 ? values[0] : 0));
+            if (difference != null) {
+                return difference;
+            }
+        }
+        return compareBatch("bytecode batch", expression, expected, anyThrows,
+                (in, out) -> formula.evaluate(in, out, 0, out.length));
+    }
+
+    /**
+     * Compares an evaluation of each row on its own with the reference.
+     */
+    private String compareRows(String path, Expression expression, double[] expected, boolean[] thrown,
+                               Scalar scalar) {
+        for (int row = 0; row < expected.length; row++) {
+            double[] values = row(expression, row);
+            double actual;
+            try {
+                actual = scalar.evaluate(values);
+            } catch (ArithmeticException e) {
+                if (thrown[row]) {
+                    continue;
+                }
+                return path + " throws " + e.getMessage() + " for " + Arrays.toString(values);
+            }
+            if (thrown[row]) {
+                return path + " does not throw for " + Arrays.toString(values);
+            }
+            if (Double.doubleToLongBits(actual) != Double.doubleToLongBits(expected[row])) {
+                return path + " gives " + actual + " instead of " + expected[row] + " for " + Arrays.toString(values);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares a batch evaluation of every row with the reference. A batch
+     * stops at its first error, so if any row throws it only has to throw.
+     */
+    private String compareBatch(String path, Expression expression, double[] expected, boolean anyThrows,
+                                Batch batch) {
+        double[][] in = Arrays.copyOf(columns, expression.getVariables().size());
+        double[] out = new double[expected.length];
+        if (anyThrows) {
+            return throwsFor(() -> batch.run(in, out)) ? null : path + " does not throw";
+        }
+        batch.run(in, out);
+        for (int row = 0; row < out.length; row++) {
+            if (Double.doubleToLongBits(out[row]) != Double.doubleToLongBits(expected[row])) {
+                return path + " gives " + out[row] + " instead of " + expected[row]
+                        + " for " + Arrays.toString(row(expression, row));
+            }
+        }
+        return null;
+    }
+
+    private static boolean throwsFor(Runnable evaluation) {
+        try {
+            evaluation.run();
+            return false;
+        } catch (ArithmeticException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Gets one row's values for the expression's variables.
+     */
+    private double[] row(Expression expression, int row) {
+        double[] values = new double[expression.getVariables().size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = columns[i][row];
+        }
+        return values;
+    }
+
+    /**
+     * Generates a random expression, using x before y so the variables'
+     * order matches the columns.
+     *
+     * @param depth How many more levels of operations to allow.
+     */
+    private String expression(int depth) {
+        String text = node(depth);
+        int x = text.indexOf('x');
+        int y = text.indexOf('y');
+        if (y >= 0 && (x < 0 || y < x)) {
+            text = text.replace('x', '#').replace('y', 'x').replace('#', 'y');
+        }
+        return text;
+    }
+
+    private String node(int depth) {
+        int choice = depth == 0 ? random.nextInt(2) : random.nextInt(9);
+        switch (choice) {
+            case 0:
+                return random.nextBoolean() ? "x" : "y";
+            case 1:
+                return CONSTANTS[random.nextInt(CONSTANTS.length)];
+            case 2:
+                return "(-" + node(depth - 1) + ")";
+            case 3:
+                return FUNCTIONS[random.nextInt(FUNCTIONS.length)] + "(" + node(depth - 1) + ")";
+            case 4: {
+                // A subtree used twice, for the optimizer to share.
+                String shared = node(depth - 1);
+                return "(" + shared + OPERATORS[random.nextInt(OPERATORS.length)] + shared + ")";
+            }
+            case 5:
+                // An operand the optimizer may drop.
+                return "(" + node(depth - 1) + OPERATORS[random.nextInt(OPERATORS.length)]
+                        + CONSTANTS[random.nextInt(4)] + ")";
+            default:
+                return "(" + node(depth - 1) + OPERATORS[random.nextInt(OPERATORS.length)] + node(depth - 1) + ")";
+        }
+    }
+
+    /**
+     * Evaluates one row.
+     */
+    private interface Scalar {
+        double evaluate(double[] values);
+    }
+
+    /**
+     * Evaluates every row of the columns into out.
+     */
+    private interface Batch {
+        void run(double[][] columns, double[] out);
+    }
+}
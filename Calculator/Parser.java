@@ -0,0 +1,162 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The calculator's recursive-descent parser. It turns an expression into a
+ * tree of {@link Node}s without evaluating anything, reading it through a
+ * {@link Lexer}, which ignores whitespace and case.
+ * <p>
+ * A name that is not one of the functions is a variable. Names are letters
+ * and underscores; a digit right after a function name is its argument, so
+ * {@code sqrt16} still means {@code sqrt(16)}. Variables are numbered in
+ * order of first appearance.
+ * <p>
+ * Grammar:
+ * <pre>
+ * expression = term | expression `+` term | expression `-` term
+ * term       = factor | term `*` factor | term `/` factor | term `%` factor
+ * factor     = `+` factor | `-` factor | `(` expression `)` | number
+ *            | function factor | variable | factor `^` factor
+ * </pre>
+ * A missing closing parenthesis is tolerated, as it always has been.
+ * <p>
+ * Trees are evaluated and compiled recursively, so expressions nested more
+ * than {@link #MAX_DEPTH} deep, counting each operator of a chain such as
+ * {@code 1+2+3} as a level, are rejected rather than left to overflow the
+ * stack.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+final class Parser {
+    /** The deepest tree or nesting of parentheses and operators accepted. */
+    static final int MAX_DEPTH = 1000;
+
+    private final Lexer lexer;
+    private final List<String> variables = new ArrayList<>();
+    // The number of parseFactor calls in progress.
+    private int nesting;
+
+    /**
+     * Creates a parser for one expression.
+     *
+     * @param expr The expression text.
+     */
+    Parser(CharSequence expr) {
+        this.lexer = new Lexer(expr);
+    }
+
+    /**
+     * Parses the expression.
+     *
+     * @return The root of the tree.
+     * @throws IllegalArgumentException If the expression is malformed or
+     *                                  nested too deeply.
+     */
+    Node parse() {
+        if (lexer.current() == -1) {
+            return new Node.Constant(0);
+        }
+        Node x = parseExpression();
+        if (lexer.current() != -1) {
+            throw new IllegalArgumentException("Unexpected: " + (char) lexer.current());
+        }
+        return x;
+    }
+
+    /**
+     * Gets the variables found by {@link #parse()}, in index order.
+     *
+     * @return The variable names.
+     */
+    List<String> variables() {
+        return variables;
+    }
+
+    private boolean eat(int charToEat) {
+        return lexer.eat(charToEat);
+    }
+
+    private Node parseExpression() {
+        Node x = parseTerm();
+        for (;;) {
+            if      (eat('+')) x = checked(new Node.Binary(Node.Operator.ADD, x, parseTerm())); // addition
+            else if (eat('-')) x = checked(new Node.Binary(Node.Operator.SUBTRACT, x, parseTerm())); // subtraction
+            else return x;
+        }
+    }
+
+    private Node parseTerm() {
+        Node x = parseFactor();
+        for (;;) {
+            if      (eat('*')) x = checked(new Node.Binary(Node.Operator.MULTIPLY, x, parseFactor())); // multiplication
+            else if (eat('/')) x = checked(new Node.Binary(Node.Operator.DIVIDE, x, parseFactor())); // division
+            else if (eat('%')) x = checked(new Node.Binary(Node.Operator.MODULO, x, parseFactor())); // modulo
+            else return x;
+        }
+    }
+
+    private Node parseFactor() {
+        if (++nesting > MAX_DEPTH) {
+            throw tooDeep();
+        }
+        Node x = parseUnary();
+        nesting--;
+        return checked(x);
+    }
+
+    private Node parseUnary() {
+        if (eat('+')) return parseFactor(); // unary plus
+        if (eat('-')) return new Node.Negate(parseFactor()); // unary minus
+
+        Node x;
+        int ch = lexer.current();
+        if (eat('(')) { // parentheses
+            x = parseExpression();
+            eat(')');
+        } else if ((ch >= '0' && ch <= '9') || ch == '.') { // numbers
+            x = lexer.number();
+        } else if ((ch >= 'a' && ch <= 'z') || ch == '_') { // functions and variables
+            lexer.name();
+            Node.Function function = lexer.function();
+            if (function != null) {
+                x = new Node.Call(function, parseFactor());
+            } else if (lexer.current() == '(') {
+                throw new IllegalArgumentException("Unknown function: " + lexer.nameString());
+            } else {
+                x = variable();
+            }
+        } else {
+            throw new IllegalArgumentException("Unexpected: " + (char) ch);
+        }
+
+        if (eat('^')) x = new Node.Binary(Node.Operator.POWER, x, parseFactor()); // exponentiation
+
+        return x;
+    }
+
+    /**
+     * Rejects a node whose tree is too deep.
+     */
+    private static Node checked(Node node) {
+        if (node.depth > MAX_DEPTH) {
+            throw tooDeep();
+        }
+        return node;
+    }
+
+    private static IllegalArgumentException tooDeep() {
+        return new IllegalArgumentException("Expression is nested more than " + MAX_DEPTH + " deep");
+    }
+
+    private Node variable() {
+        for (int index = 0; index < variables.size(); index++) {
+            if (lexer.nameEquals(variables.get(index))) {
+                return new Node.Variable(variables.get(index), index);
+            }
+        }
+        String name = lexer.nameString();
+        variables.add(name);
+        return new Node.Variable(name, variables.size() - 1);
+    }
+}
@@ -0,0 +1,263 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An expression tree flattened into a postfix instruction array, for
+ * evaluating one expression over many rows of data at once.
+ * <p>
+ * Rows are processed a chunk at a time. Each instruction runs over the
+ * whole chunk before the next one starts, working on a small stack of
+ * chunk-sized scratch arrays, so the inner loops are plain array loops the
+ * JIT can unroll and vectorize, and nothing is allocated or boxed per row.
+ * Every row goes through the same operations in the same order as a tree
+ * evaluation, so the results are identical.
+ * <p>
+ * A subtree the {@link Optimizer} shared between several parents is
+ * evaluated once per chunk: its first use saves the result to a scratch
+ * array and later uses copy it back.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+final class Program {
+    // Rows per chunk: large enough to amortize the dispatch, small enough
+    // for the scratch arrays to stay in cache.
+    private static final int CHUNK = 512;
+
+    private static final int CONSTANT = 0;
+    private static final int LOAD = 1;
+    private static final int NEGATE = 2;
+    private static final int BINARY = 3;
+    private static final int CALL = 4;
+    private static final int SAVE = 5;
+    private static final int RESTORE = 6;
+
+    private static final Node.Operator[] OPERATORS = Node.Operator.values();
+    private static final Node.Function[] FUNCTIONS = Node.Function.values();
+
+    private final int[] opcodes;
+    // The operand of each instruction: a constant, variable or saved value
+    // index, or an operator or function ordinal.
+    private final int[] operands;
+    private final double[] constants;
+    // The deepest the stack gets.
+    private final int depth;
+    // The number of shared subtrees whose values are saved.
+    private final int saved;
+
+    private Program(int[] opcodes, int[] operands, double[] constants, int depth, int saved) {
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.constants = constants;
+        this.depth = depth;
+        this.saved = saved;
+    }
+
+    /**
+     * Flattens a tree.
+     *
+     * @param root The root of the tree.
+     * @return The program.
+     */
+    static Program of(Node root) {
+        Builder builder = new Builder();
+        builder.count(root);
+        builder.emit(root, 0);
+        double[] constants = new double[builder.constants.size()];
+        for (int i = 0; i < constants.length; i++) {
+            constants[i] = builder.constants.get(i);
+        }
+        return new Program(Arrays.copyOf(builder.opcodes, builder.size),
+                Arrays.copyOf(builder.operands, builder.size), constants, builder.depth, builder.slots.size());
+    }
+
+    /**
+     * Evaluates the program for a range of rows.
+     *
+     * @param columns The variables' values, one column per variable.
+     * @param out     Receives each row's result at the row's index.
+     * @param from    The first row.
+     * @param to      The row after the last.
+     * @throws ArithmeticException On division or modulo by zero in any row.
+     */
+    void run(double[][] columns, double[] out, int from, int to) {
+        double[][] stack = new double[depth][CHUNK];
+        double[][] values = new double[saved][CHUNK];
+        for (int start = from; start < to; start += CHUNK) {
+            int n = Math.min(CHUNK, to - start);
+            int sp = 0;
+            for (int pc = 0; pc < opcodes.length; pc++) {
+                int operand = operands[pc];
+                switch (opcodes[pc]) {
+                    case CONSTANT:
+                        Arrays.fill(stack[sp++], 0, n, constants[operand]);
+                        break;
+                    case LOAD:
+                        System.arraycopy(columns[operand], start, stack[sp++], 0, n);
+                        break;
+                    case NEGATE:
+                        negate(stack[sp - 1], n);
+                        break;
+                    case BINARY:
+                        sp--;
+                        binary(OPERATORS[operand], stack[sp - 1], stack[sp], n, start);
+                        break;
+                    case CALL:
+                        call(FUNCTIONS[operand], stack[sp - 1], n);
+                        break;
+                    case SAVE:
+                        System.arraycopy(stack[sp - 1], 0, values[operand], 0, n);
+                        break;
+                    default:
+                        System.arraycopy(values[operand], 0, stack[sp++], 0, n);
+                        break;
+                }
+            }
+            System.arraycopy(stack[0], 0, out, start, n);
+        }
+    }
+
+    private static void negate(double[] x, int n) {
+        for (int i = 0; i < n; i++) {
+            x[i] = -x[i];
+        }
+    }
+
+    /**
+     * Applies an operator row by row, leaving the results in {@code x}.
+     */
+    private static void binary(Node.Operator operator, double[] x, double[] y, int n, int start) {
+        switch (operator) {
+            case ADD:
+                for (int i = 0; i < n; i++) {
+                    x[i] += y[i];
+                }
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < n; i++) {
+                    x[i] -= y[i];
+                }
+                break;
+            case MULTIPLY:
+                for (int i = 0; i < n; i++) {
+                    x[i] *= y[i];
+                }
+                break;
+            case DIVIDE:
+                checkDivisors(y, n, start, "Division by zero");
+                for (int i = 0; i < n; i++) {
+                    x[i] /= y[i];
+                }
+                break;
+            case MODULO:
+                checkDivisors(y, n, start, "Modulo by zero");
+                for (int i = 0; i < n; i++) {
+                    x[i] %= y[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    x[i] = Math.pow(x[i], y[i]);
+                }
+                break;
+        }
+    }
+
+    private static void checkDivisors(double[] y, int n, int start, String message) {
+        for (int i = 0; i < n; i++) {
+            if (y[i] == 0) {
+                throw new ArithmeticException(message + " in row " + (start + i));
+            }
+        }
+    }
+
+    private static void call(Node.Function function, double[] x, int n) {
+        for (int i = 0; i < n; i++) {
+            x[i] = function.apply(x[i]);
+        }
+    }
+
+    /**
+     * Emits instructions in postfix order and tracks the stack depth.
+     */
+    private static final class Builder {
+        private int[] opcodes = new int[16];
+        private int[] operands = new int[16];
+        private int size;
+        private final List<Double> constants = new ArrayList<>();
+        private int depth;
+        // How many parents each node has.
+        private final Map<Node, Integer> uses = new IdentityHashMap<>();
+        // The saved value index of each shared subtree emitted so far.
+        private final Map<Node, Integer> slots = new IdentityHashMap<>();
+
+        /**
+         * Counts the parents of each node below this one.
+         */
+        void count(Node node) {
+            if (uses.merge(node, 1, Integer::sum) > 1) {
+                return;
+            }
+            if (node instanceof Node.Negate) {
+                count(((Node.Negate) node).operand);
+            } else if (node instanceof Node.Binary) {
+                count(((Node.Binary) node).left);
+                count(((Node.Binary) node).right);
+            } else if (node instanceof Node.Call) {
+                count(((Node.Call) node).argument);
+            }
+        }
+
+        /**
+         * Emits a subtree whose value ends up at the given stack slot.
+         */
+        void emit(Node node, int slot) {
+            depth = Math.max(depth, slot + 1);
+            Integer index = slots.get(node);
+            if (index != null) {
+                add(RESTORE, index);
+                return;
+            }
+            emitTree(node, slot);
+            boolean leaf = node instanceof Node.Constant || node instanceof Node.Variable;
+            if (!leaf && uses.get(node) > 1) {
+                slots.put(node, slots.size());
+                add(SAVE, slots.size() - 1);
+            }
+        }
+
+        private void emitTree(Node node, int slot) {
+            if (node instanceof Node.Constant) {
+                constants.add(((Node.Constant) node).value);
+                add(CONSTANT, constants.size() - 1);
+            } else if (node instanceof Node.Variable) {
+                add(LOAD, ((Node.Variable) node).index);
+            } else if (node instanceof Node.Negate) {
+                emit(((Node.Negate) node).operand, slot);
+                add(NEGATE, 0);
+            } else if (node instanceof Node.Binary) {
+                Node.Binary binary = (Node.Binary) node;
+                emit(binary.left, slot);
+                emit(binary.right, slot + 1);
+                add(BINARY, binary.operator.ordinal());
+            } else {
+                Node.Call call = (Node.Call) node;
+                emit(call.argument, slot);
+                add(CALL, call.function.ordinal());
+            }
+        }
+
+        private void add(int opcode, int operand) {
+            if (size == opcodes.length) {
+                opcodes = Arrays.copyOf(opcodes, size * 2);
+                operands = Arrays.copyOf(operands, size * 2);
+            }
+            opcodes[size] = opcode;
+            operands[size] = operand;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A plain-text HTTP endpoint on the loopback interface that serves the
+ * server's {@link Metrics}, for example with
+ * {@code curl http://127.0.0.1:9090/metrics}. It listens only on loopback,
+ * so it is reachable from the server's own host and nowhere else.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class AdminServer {
+    private final HttpServer http;
+    private final ScheduledExecutorService sampler;
+
+    /**
+     * Starts the endpoint and the once-a-second sampling of message rates.
+     *
+     * @param port    The loopback port to listen on.
+     * @param metrics The metrics to serve.
+     * @throws IOException If the port cannot be bound.
+     */
+    public AdminServer(int port, Metrics metrics) throws IOException {
+        sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "chat-admin");
+            thread.setDaemon(true);
+            return thread;
+        });
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> serve(exchange, metrics));
+        // Requests are rare, so they share the sampler's thread.
+        http.setExecutor(sampler);
+        http.start();
+        sampler.scheduleAtFixedRate(metrics::sample, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private static void serve(HttpExchange exchange, Metrics metrics) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder report = new StringBuilder();
+            metrics.report(report);
+            byte[] body = report.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Gets the port the endpoint listens on.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    /**
+     * Stops the endpoint.
+     */
+    public void stop() {
+        http.stop(0);
+        sampler.shutdown();
+    }
+}
@@ -0,0 +1,572 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A chat client library built on asynchronous socket channels, for
+ * embedding many clients in one JVM, such as bots and load tests. No
+ * thread is tied to a client: reads, writes and connects complete on the
+ * threads of an {@link AsynchronousChannelGroup}, which any number of
+ * clients can share.
+ * <p>
+ * {@link #send(String)} never blocks. Lines queue up and are written in
+ * batches with one gathering write while earlier writes are still in
+ * flight. If the connection drops, the client reconnects with exponential
+ * backoff, sends its username again and then whatever is still queued.
+ * If the server refuses the username as taken, the {@link Listener} is
+ * told, and the next line sent is taken as the next try, just as the
+ * server does; reconnects send the last name tried.
+ * Incoming {@code MESSAGE} lines are handed to a {@link Listener}, and the
+ * server's heartbeat {@code PING}s are answered with {@code PONG}.
+ * <p>
+ * Read buffers start small and grow to hold the longest message the server
+ * can send: a {@link BinaryProtocol#MAX_PAYLOAD} message with its room and
+ * sender in front. Anything longer is skipped rather than treated as a
+ * broken connection.
+ * <p>
+ * A client using {@link Framing#COMPRESSED} asks the server to compress
+ * what it sends, and inflates it before parsing. A server that does not
+ * compress answers with the plain handshake, and the client then carries on
+ * with uncompressed binary frames.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class AsyncChatClient implements AutoCloseable {
+
+    /**
+     * How a client frames its traffic.
+     */
+    public enum Framing {
+        /** Newline-delimited text lines. */
+        TEXT,
+        /** {@link BinaryProtocol} frames. */
+        BINARY,
+        /** {@link BinaryProtocol} frames, asking for compressed server frames. */
+        COMPRESSED
+    }
+
+    /**
+     * Receives a client's events. Methods are called on the channel group's
+     * threads and should not block.
+     */
+    public interface Listener {
+        /**
+         * Called for each message, without the {@code MESSAGE } prefix.
+         *
+         * @param message The message.
+         */
+        void onMessage(String message);
+
+        /**
+         * Called when the server refuses the username because it is in
+         * use. The next line sent is the next try. The refusal notice is
+         * also passed to {@link #onMessage}.
+         *
+         * @param username The refused username.
+         */
+        default void onUsernameRefused(String username) {
+        }
+
+        /**
+         * Called whenever a connection is established.
+         */
+        default void onConnected() {
+        }
+
+        /**
+         * Called when a connection fails or is lost. The client keeps
+         * trying to reconnect until it is closed.
+         *
+         * @param cause The failure.
+         */
+        default void onDisconnected(Throwable cause) {
+        }
+    }
+
+    // Lines queued while disconnected or behind, before send() refuses more.
+    private static final int MAX_PENDING = 64 * 1024;
+    // Most lines handed to one gathering write.
+    private static final int MAX_GATHER = 64;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+    private static final int INITIAL_BUFFER = 16 * 1024;
+    // The longest frame or line kept; a message of MAX_PAYLOAD bytes fits
+    // with a prefix of up to as much again.
+    private static final int MAX_FRAME = 2 * BinaryProtocol.MAX_PAYLOAD + BinaryProtocol.HEADER_BYTES;
+    // Delays reconnect attempts for every client in the JVM.
+    private static final ScheduledExecutorService RECONNECTS = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "chat-client-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final InetSocketAddress address;
+    private final Framing framing;
+    private final AsynchronousChannelGroup group;
+    private final Listener listener;
+    // Replaced by a larger one when a message does not fit.
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER);
+    // Inflated frames still to parse, for a compressed connection.
+    private ByteBuffer inflated = ByteBuffer.allocate(INITIAL_BUFFER);
+    private final Reader reader = new Reader();
+    private final Writer writer = new Writer();
+    // Everything below is guarded by this client's lock.
+    private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+    private final ByteBuffer[] inFlight = new ByteBuffer[MAX_GATHER];
+    private int inFlightCount;
+    private AsynchronousSocketChannel channel;
+    // Bumped on every connection, so callbacks from an old one are ignored.
+    private int generation;
+    private boolean connected;
+    private boolean writing;
+    private long backoff = MIN_BACKOFF_MILLIS;
+    private boolean closed;
+    // The last username sent, and whether the server refused it, so the
+    // next line sent is another try.
+    private String username;
+    private boolean usernameRefused;
+    // Bytes of the server's handshake answer still to skip.
+    private int skip;
+    // Bytes of a frame too long to keep still to skip, or for text, whether
+    // the rest of a line too long to keep is being skipped.
+    private int discard;
+    private boolean discardLine;
+    // Set once the server agrees to compress.
+    private Inflater inflater;
+    // The handshake and username of the current connection; never resent.
+    private ByteBuffer hello;
+    private ByteBuffer login;
+
+    /**
+     * Creates a client. Nothing happens until {@link #connect()}.
+     *
+     * @param address  The server address.
+     * @param username The username sent on connecting; see above for
+     *                 what happens if it is taken.
+     * @param framing  How lines are framed on the wire.
+     * @param group    The channel group to run on, or null for the default.
+     * @param listener Receives messages and connection events.
+     */
+    public AsyncChatClient(InetSocketAddress address, String username, Framing framing,
+                           AsynchronousChannelGroup group, Listener listener) {
+        this.address = address;
+        this.username = username;
+        this.framing = framing;
+        this.group = group;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts connecting in the background.
+     */
+    public synchronized void connect() {
+        if (closed || channel != null) {
+            return;
+        }
+        try {
+            channel = AsynchronousSocketChannel.open(group);
+        } catch (IOException e) {
+            failed(generation, e);
+            return;
+        }
+        int current = ++generation;
+        channel.connect(address, null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void result, Void attachment) {
+                connected(current);
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                AsyncChatClient.this.failed(current, e);
+            }
+        });
+    }
+
+    /**
+     * Queues a line (a message or a command) for the server.
+     *
+     * @param line The line.
+     * @return False if the client is closed or too many lines are queued.
+     */
+    public boolean send(String line) {
+        return queue(line, true);
+    }
+
+    /**
+     * Queues a line for the server.
+     *
+     * @param line     The line.
+     * @param fromUser False for the client's own replies, such as
+     *                 {@code PONG}, which are never taken as a username.
+     * @return False if the client is closed or too many lines are queued.
+     */
+    private boolean queue(String line, boolean fromUser) {
+        ByteBuffer encoded = encode(line);
+        synchronized (this) {
+            if (closed || pending.size() >= MAX_PENDING) {
+                return false;
+            }
+            if (fromUser && usernameRefused) {
+                username = line;
+                usernameRefused = false;
+            }
+            pending.addLast(encoded);
+            flush();
+        }
+        return true;
+    }
+
+    /**
+     * Gets whether the client is connected right now.
+     *
+     * @return True while connected.
+     */
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Waits until every queued line has been written to the socket.
+     *
+     * @param timeoutMillis The longest time to wait.
+     * @return True if nothing is left to write.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized boolean awaitSent(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!closed && (writing || !pending.isEmpty())) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return !writing && pending.isEmpty();
+    }
+
+    /**
+     * Disconnects for good and discards anything still queued.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        pending.clear();
+        closeChannel();
+        notifyAll();
+    }
+
+    private ByteBuffer encode(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encoded = ByteBuffer.allocate(bytes.length + BinaryProtocol.HEADER_BYTES);
+        if (framing != Framing.TEXT) {
+            encoded.putInt(bytes.length).put(BinaryProtocol.LINE).put(bytes);
+        } else {
+            encoded.put(bytes).put((byte) '\n');
+        }
+        return encoded.flip();
+    }
+
+    private synchronized void connected(int current) {
+        if (current != generation || closed) {
+            return;
+        }
+        connected = true;
+        usernameRefused = false;
+        backoff = MIN_BACKOFF_MILLIS;
+        // The username, and the handshake before it, go ahead of anything queued.
+        login = encode(username);
+        pending.addFirst(login);
+        if (framing != Framing.TEXT) {
+            hello = ByteBuffer.wrap(framing == Framing.COMPRESSED ? BinaryProtocol.HELLO_DEFLATE : BinaryProtocol.HELLO);
+            pending.addFirst(hello);
+            skip = BinaryProtocol.HELLO.length;
+        }
+        readBuffer.clear();
+        inflated.clear();
+        discard = 0;
+        discardLine = false;
+        channel.read(readBuffer, current, reader);
+        flush();
+        listener.onConnected();
+    }
+
+    /**
+     * Starts a gathering write of the queued lines unless one is running.
+     * Called with the lock held.
+     */
+    private void flush() {
+        if (!connected || writing || pending.isEmpty()) {
+            return;
+        }
+        writing = true;
+        inFlightCount = 0;
+        while (inFlightCount < MAX_GATHER && !pending.isEmpty()) {
+            inFlight[inFlightCount++] = pending.pollFirst();
+        }
+        write();
+    }
+
+    private void write() {
+        channel.write(inFlight, 0, inFlightCount, 0, TimeUnit.MILLISECONDS, generation, writer);
+    }
+
+    /**
+     * Handles a failed connect, read or write: closes the connection, puts
+     * unwritten lines back at the head of the queue and schedules a
+     * reconnect.
+     */
+    private synchronized void failed(int current, Throwable cause) {
+        if (current != generation || closed) {
+            return;
+        }
+        closeChannel();
+        // Lines in flight are sent again in full; a partial line never
+        // reached the server as a line. The old connection's handshake and
+        // username are dropped; the next connection sends its own.
+        for (int i = inFlightCount - 1; i >= 0; i--) {
+            if (inFlight[i].hasRemaining() && !isHandshake(inFlight[i])) {
+                pending.addFirst(inFlight[i].rewind());
+            }
+            inFlight[i] = null;
+        }
+        inFlightCount = 0;
+        writing = false;
+        while (!pending.isEmpty() && isHandshake(pending.peekFirst())) {
+            pending.pollFirst();
+        }
+        listener.onDisconnected(cause);
+        long delay = backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        RECONNECTS.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean isHandshake(ByteBuffer buffer) {
+        return buffer == hello || buffer == login;
+    }
+
+    private void closeChannel() {
+        connected = false;
+        generation++;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            channel = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    /**
+     * Handles the bytes read so far: skips the handshake answer, inflates
+     * if the server compresses, and parses messages. Called with the lock
+     * held.
+     */
+    private void parse() throws DataFormatException {
+        readBuffer.flip();
+        while (skip > 0 && readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (--skip == 0 && b == BinaryProtocol.HELLO_DEFLATE[BinaryProtocol.HELLO_DEFLATE.length - 1]) {
+                inflater = new Inflater(true);
+                inflater.setDictionary(BinaryProtocol.DEFLATE_DICTIONARY);
+            }
+        }
+        if (inflater == null) {
+            readBuffer = parse(readBuffer);
+            return;
+        }
+        inflater.setInput(readBuffer);
+        boolean full;
+        // Inflate until the input is used up and the output did not fill,
+        // so nothing is left inside the inflater.
+        do {
+            inflater.inflate(inflated);
+            full = !inflated.hasRemaining();
+            inflated.flip();
+            inflated = parse(inflated);
+            if (!inflated.hasRemaining()) {
+                throw new IllegalStateException("Frame too large");
+            }
+        } while (full || !inflater.needsInput());
+        readBuffer.clear();
+    }
+
+    /**
+     * Parses a buffer into messages, keeping a partial one for later.
+     *
+     * @param buffer The buffer, in read mode.
+     * @return The buffer in write mode, or a larger copy if the partial
+     *         message did not fit.
+     */
+    private ByteBuffer parse(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        // The size of the partial message, once it is known not to fit.
+        int needed = 0;
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            if (discard > 0) {
+                int skipped = Math.min(discard, buffer.remaining());
+                buffer.position(start + skipped);
+                discard -= skipped;
+                continue;
+            }
+            if (framing != Framing.TEXT) {
+                if (buffer.remaining() < BinaryProtocol.HEADER_BYTES) {
+                    break;
+                }
+                int length = buffer.getInt(start);
+                if (length < 0) {
+                    throw new IllegalStateException("Bad frame length " + length);
+                }
+                if (length > MAX_FRAME - BinaryProtocol.HEADER_BYTES) {
+                    discard = BinaryProtocol.HEADER_BYTES + length;
+                    continue;
+                }
+                if (buffer.remaining() < BinaryProtocol.HEADER_BYTES + length) {
+                    needed = BinaryProtocol.HEADER_BYTES + length;
+                    break;
+                }
+                byte type = buffer.get(start + 4);
+                buffer.position(start + BinaryProtocol.HEADER_BYTES + length);
+                if (type == BinaryProtocol.MESSAGE) {
+                    message(new String(bytes, start + BinaryProtocol.HEADER_BYTES, length,
+                            StandardCharsets.UTF_8));
+                } else if (type == BinaryProtocol.PING) {
+                    queue("PONG", false);
+                }
+            } else {
+                int end = start;
+                int limit = buffer.limit();
+                while (end < limit && bytes[end] != '\n') {
+                    end++;
+                }
+                if (discardLine) {
+                    buffer.position(Math.min(end + 1, limit));
+                    discardLine = end == limit;
+                    continue;
+                }
+                if (end == limit) {
+                    if (limit - start < buffer.capacity()) {
+                        break;
+                    }
+                    // The buffer is full of one unfinished line.
+                    if (buffer.capacity() < MAX_FRAME) {
+                        needed = buffer.capacity() + 1;
+                    } else {
+                        buffer.position(limit);
+                        discardLine = true;
+                    }
+                    break;
+                }
+                buffer.position(end + 1);
+                int stop = end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+                String line = new String(bytes, start, stop - start, StandardCharsets.UTF_8);
+                if (line.startsWith("MESSAGE ")) {
+                    message(line.substring(8));
+                } else if (line.equals("PING")) {
+                    queue("PONG", false);
+                }
+            }
+        }
+        buffer.compact();
+        if (needed <= buffer.capacity()) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_FRAME, Math.max(needed, buffer.capacity() * 2)));
+        return larger.put(buffer.flip());
+    }
+
+    /**
+     * Hands a message to the listener, noticing if it refuses the username.
+     * Called with the lock held.
+     */
+    private void message(String message) {
+        // Only notices and the messages of users named "* ..." start so.
+        if (message.startsWith("* ") && message.equals("* " + ChatSession.usernameTaken(username))) {
+            usernameRefused = true;
+            listener.onUsernameRefused(username);
+        }
+        listener.onMessage(message);
+    }
+
+    /**
+     * Completes reads: parses what arrived and reads again.
+     */
+    private class Reader implements CompletionHandler<Integer, Integer> {
+        @Override
+        public void completed(Integer count, Integer current) {
+            synchronized (AsyncChatClient.this) {
+                if (current != generation) {
+                    return;
+                }
+                if (count < 0) {
+                    AsyncChatClient.this.failed(current, new IOException("Connection closed by server"));
+                    return;
+                }
+                try {
+                    parse();
+                } catch (IllegalStateException | DataFormatException e) {
+                    AsyncChatClient.this.failed(current, new IOException(e.getMessage()));
+                    return;
+                }
+                channel.read(readBuffer, current, this);
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, Integer current) {
+            AsyncChatClient.this.failed(current, e);
+        }
+    }
+
+    /**
+     * Completes gathering writes: finishes a partial write or starts the
+     * next batch.
+     */
+    private class Writer implements CompletionHandler<Long, Integer> {
+        @Override
+        public void completed(Long count, Integer current) {
+            synchronized (AsyncChatClient.this) {
+                if (current != generation) {
+                    return;
+                }
+                if (inFlight[inFlightCount - 1].hasRemaining()) {
+                    write();
+                    return;
+                }
+                for (int i = 0; i < inFlightCount; i++) {
+                    inFlight[i] = null;
+                }
+                inFlightCount = 0;
+                writing = false;
+                flush();
+                if (!writing) {
+                    AsyncChatClient.this.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, Integer current) {
+            AsyncChatClient.this.failed(current, e);
+        }
+    }
+}
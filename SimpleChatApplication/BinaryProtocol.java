@@ -0,0 +1,213 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The length-prefixed binary framing that clients can ask for instead of
+ * newline-delimited text.
+ * <p>
+ * A client asks for it by sending {@link #HELLO} before anything else; the
+ * server answers with the same bytes and from then on both sides exchange
+ * frames of a 4-byte big-endian payload length, a type byte and a UTF-8
+ * payload. A reader knows each frame's size from its header, so nothing is
+ * scanned for delimiters and payloads may contain line breaks. A text
+ * client's first byte can never be zero, so the server tells the two apart
+ * from the first byte alone.
+ * <p>
+ * A client that sends {@link #HELLO_DEFLATE} instead also asks for the
+ * server's frames to be compressed: everything the server sends after its
+ * answer is one raw deflate stream, primed with {@link #DEFLATE_DICTIONARY}
+ * and flushed at the end of every batch of frames. A server that does not
+ * compress answers with plain {@link #HELLO}. The client's own frames are
+ * never compressed; they are one line at a time and the volume is in the
+ * server's fan-out.
+ * <p>
+ * Client frames are all {@link #LINE}s, carrying exactly what a text client
+ * would send as one line: the username, a message, a command or the
+ * {@code PONG} that answers a {@link #PING}. Server frames are typed by the
+ * keyword that starts the equivalent text line, with the rest of the line
+ * as the payload.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public final class BinaryProtocol {
+    /** The handshake a client sends to ask for binary framing, and the server's answer. */
+    public static final byte[] HELLO = {0, 'C', 'H', 'A', 'T', 1};
+    /** The handshake that asks for binary framing with compressed server frames, and its answer. */
+    public static final byte[] HELLO_DEFLATE = {0, 'C', 'H', 'A', 'T', 2};
+    /**
+     * The preset dictionary of both ends' deflate streams: text common in
+     * chat traffic, so even the first frames of a connection compress well.
+     * Changing it breaks compatibility with existing clients.
+     */
+    public static final byte[] DEFLATE_DICTIONARY = (" the you and to that it is was for are have what not this but with"
+            + " just like know can so will all your get about there when out they one how good yes no ok lol"
+            + " * You left ; now talking in You are now talking in . [lobby] ").getBytes(StandardCharsets.UTF_8);
+    /** The size of a frame header: payload length and type. */
+    public static final int HEADER_BYTES = 5;
+    /** The largest payload either side accepts. */
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    /** A client line: username, message or command. */
+    public static final byte LINE = 1;
+    /** A chat message or notice; the text protocol's {@code MESSAGE} line. */
+    public static final byte MESSAGE = 2;
+    /** A heartbeat with an empty payload, sent to a quiet client; the text protocol's {@code PING} line. */
+    public static final byte PING = 3;
+
+    // Text keywords of the server frame types, indexed by type.
+    private static final String[] KEYWORDS = {null, null, "MESSAGE", "PING"};
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Gets the frame type for a text protocol keyword.
+     *
+     * @param keyword The keyword that starts the text line.
+     * @return The frame type.
+     */
+    public static byte typeOf(String keyword) {
+        for (int type = 0; type < KEYWORDS.length; type++) {
+            if (keyword.equals(KEYWORDS[type])) {
+                return (byte) type;
+            }
+        }
+        throw new IllegalArgumentException("No frame type for " + keyword);
+    }
+
+    /**
+     * Gets the text protocol keyword for a server frame type.
+     *
+     * @param type The frame type.
+     * @return The keyword, or null if the type has none.
+     */
+    public static String keywordOf(byte type) {
+        return type >= 0 && type < KEYWORDS.length ? KEYWORDS[type] : null;
+    }
+
+    /**
+     * Checks whether a stream starts with a handshake, consuming it if so.
+     * Nothing is consumed from a text client; a stream that starts like a
+     * handshake but does not match one is rejected.
+     *
+     * @param in A stream supporting mark and reset.
+     * @return {@link #HELLO} or {@link #HELLO_DEFLATE}, whichever the client
+     *         sent, or null for a text client.
+     * @throws IOException If reading fails or the handshake is malformed.
+     */
+    public static byte[] readHello(InputStream in) throws IOException {
+        in.mark(1);
+        int first = in.read();
+        if (first != HELLO[0]) {
+            in.reset();
+            return null;
+        }
+        byte[] rest = new byte[HELLO.length - 1];
+        new DataInputStream(in).readFully(rest);
+        for (byte[] hello : new byte[][] {HELLO, HELLO_DEFLATE}) {
+            if (Arrays.equals(rest, 0, rest.length, hello, 1, hello.length)) {
+                return hello;
+            }
+        }
+        throw new IOException("Unsupported handshake");
+    }
+
+    /**
+     * Converts one complete text line to a binary frame. Used where only the
+     * text form of a line is at hand, such as lines replayed from the message
+     * log. A line with no known keyword is sent whole as a {@link #LINE}.
+     *
+     * @param text  The text bytes; read between {@code start} and {@code end}.
+     * @param start The position of the first byte of the line.
+     * @param end   The position just past the line's {@code '\n'}.
+     * @param out   The buffer to append the frame to; it needs room for
+     *              the line's length plus {@code HEADER_BYTES - 1}.
+     */
+    public static void fromText(ByteBuffer text, int start, int end, ByteBuffer out) {
+        end--;
+        if (end > start && text.get(end - 1) == '\r') {
+            end--;
+        }
+        byte type = LINE;
+        for (int t = 0; t < KEYWORDS.length; t++) {
+            if (KEYWORDS[t] != null && startsWith(text, start, end, KEYWORDS[t])) {
+                type = (byte) t;
+                start += KEYWORDS[t].length() + 1;
+                break;
+            }
+        }
+        out.putInt(end - start).put(type);
+        for (int i = start; i < end; i++) {
+            out.put(text.get(i));
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer text, int start, int end, String keyword) {
+        if (end - start <= keyword.length() || text.get(start + keyword.length()) != ' ') {
+            return false;
+        }
+        for (int i = 0; i < keyword.length(); i++) {
+            if (text.get(start + i) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads frames from a blocking stream, reusing one payload array.
+     */
+    public static class Reader {
+        private final DataInputStream in;
+        private byte[] payload = new byte[256];
+        private byte type;
+
+        /**
+         * Creates a reader.
+         *
+         * @param in The stream, positioned after the handshake.
+         */
+        public Reader(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        /**
+         * Reads the next frame.
+         *
+         * @return Its payload, or null at the end of the stream.
+         * @throws IOException If reading fails or the frame is malformed.
+         */
+        public String read() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (length < 0 || length > MAX_PAYLOAD) {
+                throw new IOException("Bad frame length " + length);
+            }
+            type = in.readByte();
+            if (length > payload.length) {
+                payload = new byte[Math.max(length, payload.length * 2)];
+            }
+            in.readFully(payload, 0, length);
+            return new String(payload, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Gets the type of the frame last read.
+         *
+         * @return The frame type.
+         */
+        public byte type() {
+            return type;
+        }
+    }
+}
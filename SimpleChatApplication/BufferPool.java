@@ -0,0 +1,96 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers in power-of-two size classes.
+ * Direct buffers can be written to a socket without being copied into a
+ * temporary native buffer first, but they are expensive to allocate, so
+ * frames borrow them from here and give them back once every recipient has
+ * been sent its copy.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class BufferPool {
+    // Smallest and largest pooled sizes; larger requests get an unpooled buffer.
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 16;
+    // Most idle buffers kept per size class.
+    private static final int MAX_IDLE = 1024;
+
+    /** The pool shared by the whole server. */
+    public static final BufferPool SHARED = new BufferPool();
+
+    private final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    /**
+     * Creates an empty pool.
+     */
+    public BufferPool() {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+        }
+    }
+
+    /**
+     * Borrows a cleared buffer with at least the requested capacity.
+     *
+     * @param capacity The number of bytes needed.
+     * @return A direct buffer from the pool, or a heap buffer if the request
+     *         is larger than the biggest size class.
+     */
+    public ByteBuffer acquire(int capacity) {
+        SizeClass sizeClass = classFor(capacity);
+        if (sizeClass == null) {
+            return ByteBuffer.allocate(capacity);
+        }
+        ByteBuffer buffer = sizeClass.idle.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(sizeClass.size);
+        }
+        sizeClass.count.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers the pool did not hand out, or
+     * that would exceed the idle limit, are left to the garbage collector.
+     *
+     * @param buffer The buffer to return; the caller must not use it again.
+     */
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        SizeClass sizeClass = classFor(buffer.capacity());
+        if (sizeClass == null || sizeClass.size != buffer.capacity()) {
+            return;
+        }
+        if (sizeClass.count.incrementAndGet() > MAX_IDLE) {
+            sizeClass.count.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        sizeClass.idle.add(buffer);
+    }
+
+    private SizeClass classFor(int capacity) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1));
+        return shift > MAX_SHIFT ? null : classes[shift - MIN_SHIFT];
+    }
+
+    /**
+     * The idle buffers of one size.
+     */
+    private static class SizeClass {
+        private final int size;
+        private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+    }
+}
@@ -1,12 +1,14 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /**
  * A simple command-line chat client.
+ * Run it with {@code --binary} to use length-prefixed {@link BinaryProtocol}
+ * framing instead of text lines, or with {@code --compress} to also ask the
+ * server to compress what it sends. The connection is an {@link AsyncChatClient},
+ * so it reconnects by itself if the server goes away.
  *
  * @author Jules
  * @author Darshil
@@ -20,50 +22,58 @@ public class ChatClient {
     /**
      * The main method that runs the chat client.
      *
-     * @param args Command-line arguments (not used).
+     * @param args Command-line arguments: {@code --binary} to use binary framing,
+     *             {@code --compress} for compressed binary framing.
      * @throws IOException If an I/O error occurs.
      */
     public static void main(String[] args) throws IOException {
-        // Create a new socket to connect to the server
-        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT)) {
-            // Create a thread to read messages from the server and print them to the
-            // console
-            new Thread(() -> {
-                try {
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    String line;
-                    while ((line = in.readLine()) != null) {
-                        if (line.startsWith("MESSAGE")) {
-                            System.out.println(line.substring(8));
-                        }
-                    }
-                } catch (IOException e) {
-                    System.out.println("Connection lost: " + e.getMessage());
-                }
-            }).start();
+        AsyncChatClient.Framing framing = AsyncChatClient.Framing.TEXT;
+        if (Arrays.asList(args).contains("--compress")) {
+            framing = AsyncChatClient.Framing.COMPRESSED;
+        } else if (Arrays.asList(args).contains("--binary")) {
+            framing = AsyncChatClient.Framing.BINARY;
+        }
+        // Create a Scanner to read input from the user
+        try (Scanner scanner = new Scanner(System.in)) {
+            // Prompt the user for a username
+            System.out.print("Enter your username: ");
+            if (!scanner.hasNextLine()) {
+                return;
+            }
+            String username = scanner.nextLine();
 
-            // Create a PrintWriter to send messages to the server
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            // Create a Scanner to read input from the user
-            try (Scanner scanner = new Scanner(System.in)) {
-                // Prompt the user for a username
-                System.out.print("Enter your username: ");
-                if (scanner.hasNextLine()) {
-                    String username = scanner.nextLine();
-                    out.println(username);
+            // Connect in the background and print messages from the server
+            // to the console as they arrive
+            AsyncChatClient client = new AsyncChatClient(new InetSocketAddress(SERVER_ADDRESS, SERVER_PORT),
+                    username, framing, null, new AsyncChatClient.Listener() {
+                        @Override
+                        public void onMessage(String message) {
+                            System.out.println(message);
+                        }
 
-                    // Loop to read messages from the user and send them to the server
-                    while (scanner.hasNextLine()) {
-                        String message = scanner.nextLine();
-                        if (message.equalsIgnoreCase("exit") || message.equalsIgnoreCase("quit")) {
-                            break;
+                        @Override
+                        public void onDisconnected(Throwable cause) {
+                            System.out.println("Connection lost: " + cause.getMessage() + "; reconnecting...");
                         }
-                        out.println(message);
+                    });
+            client.connect();
+
+            // Loop to read messages from the user and send them to the server
+            try (client) {
+                while (scanner.hasNextLine()) {
+                    String message = scanner.nextLine();
+                    if (message.equalsIgnoreCase("exit") || message.equalsIgnoreCase("quit")) {
+                        break;
+                    }
+                    if (!client.send(message)) {
+                        System.out.println("Too many unsent messages; dropped: " + message);
                     }
                 }
+                // Give the last messages a moment to go out before closing.
+                client.awaitSent(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } catch (IOException e) {
-            System.err.println("Could not connect to server: " + e.getMessage());
         }
     }
 }
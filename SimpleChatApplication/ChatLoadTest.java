@@ -0,0 +1,451 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A headless load generator for the chat server.
+ * It starts a server in this JVM on a free port (or uses one already
+ * running with {@code --target-port=N}), connects a number of clients that
+ * all sit in the lobby, and sends messages from them in turn at a fixed
+ * total rate. Every message carries the time it was due to be sent, so
+ * each delivery's latency is measured from then to the moment a reader
+ * thread parses it, including any time the sender fell behind schedule.
+ * At the end it prints throughput and latency percentiles.
+ * <p>
+ * Options:
+ * <ul>
+ * <li>{@code --clients=N} connections (default 100)</li>
+ * <li>{@code --rate=N} messages per second across all clients (default 1000)</li>
+ * <li>{@code --duration=N} seconds measured (default 10), after
+ *     {@code --warmup=N} seconds not measured (default 2)</li>
+ * <li>{@code --size=N} message length in bytes (default 64)</li>
+ * <li>{@code --readers=N} client reader threads (default one per core)</li>
+ * <li>{@code --binary} to use {@link BinaryProtocol} framing</li>
+ * <li>{@code --target-port=N} to load a server that is already running</li>
+ * </ul>
+ * Any other option is passed to the in-process server, so for example
+ * {@code java ChatLoadTest --mode=nio --clients=1000} compares with
+ * {@code java ChatLoadTest --mode=thread --clients=1000} on the same box.
+ * The in-process server's per-client rate limits are off unless
+ * {@code --message-rate} or {@code --byte-rate} is given.
+ * <p>
+ * If fewer messages are delivered than were sent to every client, the
+ * percentiles describe only those delivered, so the test says so and exits
+ * with status 1.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class ChatLoadTest {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private int clients = 100;
+    private int rate = 1000;
+    private int durationSeconds = 10;
+    private int warmupSeconds = 2;
+    private int size = 64;
+    private int readers = Runtime.getRuntime().availableProcessors();
+    private boolean binary;
+    private int targetPort;
+    private final List<String> serverArgs = new ArrayList<>();
+
+    /**
+     * The main method that runs a load test.
+     *
+     * @param args Command-line options, see above.
+     * @throws Exception If the test cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+        ChatLoadTest test = new ChatLoadTest();
+        try {
+            for (String arg : args) {
+                test.set(arg);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println("Usage: java ChatLoadTest [--clients=N] [--rate=N] [--duration=N] [--warmup=N]"
+                    + " [--size=N] [--readers=N] [--binary] [--target-port=N] [server options]");
+            return;
+        }
+        boolean complete = test.run();
+        // The in-process server has non-daemon threads.
+        System.exit(complete ? 0 : 1);
+    }
+
+    private void set(String arg) {
+        int eq = arg.indexOf('=');
+        String name = eq < 0 ? arg : arg.substring(0, eq);
+        String value = eq < 0 ? "" : arg.substring(eq + 1);
+        switch (name) {
+            case "--clients":
+                clients = parseInt(name, value, 1);
+                break;
+            case "--rate":
+                rate = parseInt(name, value, 1);
+                break;
+            case "--duration":
+                durationSeconds = parseInt(name, value, 1);
+                break;
+            case "--warmup":
+                warmupSeconds = parseInt(name, value, 0);
+                break;
+            case "--size":
+                size = parseInt(name, value, 24);
+                if (size > BinaryProtocol.MAX_PAYLOAD / 2) {
+                    throw new IllegalArgumentException(name + " must be at most " + BinaryProtocol.MAX_PAYLOAD / 2);
+                }
+                break;
+            case "--readers":
+                readers = parseInt(name, value, 1);
+                break;
+            case "--binary":
+                binary = true;
+                break;
+            case "--target-port":
+                targetPort = parseInt(name, value, 1);
+                break;
+            default:
+                if (!arg.startsWith("--") || name.equals("--port")) {
+                    throw new IllegalArgumentException("Unexpected argument: " + arg);
+                }
+                serverArgs.add(arg);
+        }
+    }
+
+    private static int parseInt(String name, String value, int min) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed >= min) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through
+        }
+        throw new IllegalArgumentException(name + " must be an integer >= " + min + ": " + value);
+    }
+
+    /**
+     * Runs the test and prints the results.
+     *
+     * @return Whether every message was delivered to every client.
+     */
+    private boolean run() throws Exception {
+        int port = targetPort != 0 ? targetPort : startServer();
+
+        Reader[] readerThreads = new Reader[readers];
+        for (int i = 0; i < readers; i++) {
+            readerThreads[i] = new Reader(i);
+        }
+        SocketChannel[] channels = new SocketChannel[clients];
+        for (int i = 0; i < clients; i++) {
+            channels[i] = connect(port, "load-" + i);
+            readerThreads[i % readers].add(channels[i]);
+        }
+        for (Reader reader : readerThreads) {
+            reader.thread.start();
+        }
+        System.out.println("Connected " + clients + " clients to port " + port
+                + (binary ? " (binary framing)" : ""));
+
+        // Send at a fixed rate, round-robin over the clients. Each message
+        // is stamped with the time it was due, not the time it went out.
+        long interval = 1_000_000_000L / rate;
+        long start = System.nanoTime();
+        long measureFrom = start + warmupSeconds * 1_000_000_000L;
+        long end = measureFrom + durationSeconds * 1_000_000_000L;
+        for (Reader reader : readerThreads) {
+            reader.measureFrom = measureFrom;
+        }
+        ByteBuffer message = ByteBuffer.allocateDirect(BinaryProtocol.HEADER_BYTES + size + 1);
+        long sent = 0;
+        long due = start;
+        int next = 0;
+        while (due < end) {
+            long wait = due - System.nanoTime();
+            if (wait > 50_000) {
+                LockSupport.parkNanos(wait - 20_000);
+                continue;
+            }
+            while (System.nanoTime() < due) {
+                Thread.onSpinWait();
+            }
+            encode(message, due);
+            SocketChannel channel = channels[next];
+            while (message.hasRemaining()) {
+                if (channel.write(message) == 0) {
+                    Thread.onSpinWait();
+                }
+            }
+            if (due >= measureFrom) {
+                sent++;
+            }
+            next = next + 1 == clients ? 0 : next + 1;
+            due += interval;
+        }
+
+        // Give the last messages time to arrive, then collect the readers.
+        Thread.sleep(1000);
+        LatencyHistogram latencies = new LatencyHistogram();
+        long delivered = 0;
+        for (Reader reader : readerThreads) {
+            reader.running = false;
+            reader.selector.wakeup();
+            reader.thread.join();
+            latencies.add(reader.histogram);
+            delivered += reader.histogram.count();
+        }
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        return report(sent, delivered, latencies);
+    }
+
+    /**
+     * Starts a chat server in this JVM on a free port.
+     *
+     * @return The port.
+     */
+    private int startServer() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        serverArgs.add("--port=" + port);
+        // Measure the server, not its rate limits.
+        if (serverArgs.stream().noneMatch(arg -> arg.startsWith("--message-rate="))) {
+            serverArgs.add("--message-rate=0");
+        }
+        if (serverArgs.stream().noneMatch(arg -> arg.startsWith("--byte-rate="))) {
+            serverArgs.add("--byte-rate=0");
+        }
+        Thread server = new Thread(() -> {
+            try {
+                ChatServer.main(serverArgs.toArray(new String[0]));
+            } catch (Exception e) {
+                System.err.println("Server failed: " + e);
+            }
+        }, "chat-server");
+        server.setDaemon(true);
+        server.start();
+        // Wait until the server is listening.
+        for (int attempt = 0; ; attempt++) {
+            try (SocketChannel probe = SocketChannel.open(new InetSocketAddress("127.0.0.1", port))) {
+                probe.write(ByteBuffer.wrap("probe\n".getBytes(StandardCharsets.UTF_8)));
+                return port;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private SocketChannel connect(int port, String username) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+        channel.socket().setTcpNoDelay(true);
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer hello = ByteBuffer.allocate(BinaryProtocol.HELLO.length + BinaryProtocol.HEADER_BYTES + name.length + 1);
+        if (binary) {
+            hello.put(BinaryProtocol.HELLO).putInt(name.length).put(BinaryProtocol.LINE).put(name);
+        } else {
+            hello.put(name).put((byte) '\n');
+        }
+        hello.flip();
+        while (hello.hasRemaining()) {
+            channel.write(hello);
+        }
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * Fills the buffer with one message: the due time in decimal, padded
+     * with letters to the message size, in the framing in use.
+     */
+    private void encode(ByteBuffer message, long due) {
+        message.clear();
+        if (binary) {
+            message.putInt(size).put(BinaryProtocol.LINE);
+        }
+        int start = message.position();
+        message.put(Long.toString(due).getBytes(StandardCharsets.US_ASCII)).put((byte) ' ');
+        while (message.position() - start < size) {
+            message.put((byte) 'x');
+        }
+        if (!binary) {
+            message.put((byte) '\n');
+        }
+        message.flip();
+    }
+
+    /**
+     * Prints the results.
+     *
+     * @return Whether every message was delivered to every client.
+     */
+    private boolean report(long sent, long delivered, LatencyHistogram latencies) {
+        long expected = sent * clients;
+        System.out.println();
+        System.out.printf("Sent %d messages in %d s (%.0f/s) to %d clients%n",
+                sent, durationSeconds, sent / (double) durationSeconds, clients);
+        System.out.printf("Delivered %d of %d (%.2f%%), %.0f deliveries/s%n",
+                delivered, expected, expected == 0 ? 0 : 100.0 * delivered / expected,
+                delivered / (double) durationSeconds);
+        System.out.printf("Latency (us): mean %.1f", latencies.mean() / 1000);
+        for (double percentile : PERCENTILES) {
+            System.out.printf(", p%s %.1f", percentile == (long) percentile ? Long.toString((long) percentile)
+                    : Double.toString(percentile), latencies.percentile(percentile) / 1000.0);
+        }
+        System.out.printf(", max %.1f%n", latencies.max() / 1000.0);
+        if (delivered != expected) {
+            System.err.printf("FAILED: %d of %d deliveries missing; the latencies cover only those delivered."
+                    + " Is the server rate limiting (--message-rate, --byte-rate) or dropping frames?%n",
+                    expected - delivered, expected);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A reader thread: reads every message delivered to its share of the
+     * clients and records the latency of those sent after the warmup.
+     */
+    private class Reader implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private volatile long measureFrom = Long.MAX_VALUE;
+        private volatile boolean running = true;
+
+        Reader(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "load-reader-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void add(SocketChannel channel) throws IOException {
+            // Binary clients are answered with the handshake first.
+            Pending pending = new Pending(binary ? BinaryProtocol.HELLO.length : 0);
+            channel.register(selector, SelectionKey.OP_READ, pending);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        read((SocketChannel) key.channel(), (Pending) key.attachment());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Reader error: " + e);
+            }
+        }
+
+        /**
+         * Reads what is available on one client, appended to the bytes of
+         * its last partial message, and parses each complete message.
+         */
+        private void read(SocketChannel channel, Pending pending) throws IOException {
+            buffer.clear();
+            buffer.put(pending.bytes, 0, pending.length);
+            if (channel.read(buffer) < 0) {
+                channel.close();
+                return;
+            }
+            long now = System.nanoTime();
+            byte[] bytes = buffer.array();
+            int limit = buffer.position();
+            int position = Math.min(pending.skip, limit);
+            pending.skip -= position;
+            while (position < limit) {
+                int start;
+                int end;
+                if (binary) {
+                    if (limit - position < BinaryProtocol.HEADER_BYTES) {
+                        break;
+                    }
+                    int length = buffer.getInt(position);
+                    start = position + BinaryProtocol.HEADER_BYTES;
+                    end = start + length;
+                    if (end > limit) {
+                        break;
+                    }
+                    position = end;
+                } else {
+                    start = position;
+                    end = start;
+                    while (end < limit && bytes[end] != '\n') {
+                        end++;
+                    }
+                    if (end == limit) {
+                        break;
+                    }
+                    position = end + 1;
+                }
+                long due = parseDue(bytes, start, end);
+                if (due >= measureFrom) {
+                    histogram.record(now - due);
+                }
+            }
+            pending.keep(bytes, position, limit);
+        }
+    }
+
+    /**
+     * Finds the due time after the {@code ": "} that ends the sender's name.
+     *
+     * @return The due time, or -1 if the message is not a load message.
+     */
+    private static long parseDue(byte[] bytes, int start, int end) {
+        for (int i = start; i + 1 < end; i++) {
+            if (bytes[i] == ':' && bytes[i + 1] == ' ') {
+                long due = 0;
+                int digits = 0;
+                for (int j = i + 2; j < end && bytes[j] >= '0' && bytes[j] <= '9'; j++) {
+                    due = due * 10 + bytes[j] - '0';
+                    digits++;
+                }
+                return digits > 0 ? due : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The unparsed tail of one client's input, and how many handshake
+     * bytes are still to be skipped.
+     */
+    private static class Pending {
+        private byte[] bytes = new byte[256];
+        private int length;
+        private int skip;
+
+        Pending(int skip) {
+            this.skip = skip;
+        }
+
+        void keep(byte[] source, int from, int to) {
+            length = to - from;
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            System.arraycopy(source, from, bytes, 0, length);
+        }
+    }
+}
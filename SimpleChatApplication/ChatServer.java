@@ -1,110 +1,405 @@
 import java.io.*;
 import java.net.*;
-import java.util.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A simple multi-threaded chat server.
  * When a client connects, it spawns a new thread to handle them.
+ * <p>
+ * Quiet clients are pinged and eventually disconnected by an
+ * {@link IdleReaper}. When the JVM is asked to exit, the server stops
+ * accepting and reading, gives every client until the shutdown timeout to
+ * receive what is still queued for it, and then closes what is left.
  *
  * @author Jules
  * @author Darshil
  * @version 1.0
  */
 public class ChatServer {
-    // Port number for the server
-    private static final int PORT = 12345;
-    // Set of all print writers for connected clients, used to broadcast messages.
-    private static Set<PrintWriter> clientWriters = new HashSet<>();
+    // Charset of the line protocol; binary framing carries the same bytes.
+    static final Charset CHARSET = StandardCharsets.UTF_8;
+    // Rooms and the outboxes subscribed to them, used to broadcast messages.
+    private static RoomRegistry rooms;
+    private static UsernameRegistry usernames;
+    // Runs the writer tasks that drain client outboxes.
+    private static ExecutorService writers;
+    // Delays writer tasks while an outbox's batch window is open.
+    private static ScheduledExecutorService batchTimer;
+    private static final Outbox.DrainScheduler WRITER_SCHEDULER = new Outbox.DrainScheduler() {
+        @Override
+        public void execute(Runnable task) {
+            writers.execute(task);
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayNanos) {
+            batchTimer.schedule(() -> writers.execute(task), delayNanos, TimeUnit.NANOSECONDS);
+        }
+    };
+    private static ServerConfig config;
+    // Null when neither heartbeats nor idle timeouts are on.
+    private static IdleReaper reaper;
+    private static ServerSocketChannel listener;
+    // Every running handler, so a shutdown can reach them.
+    private static final Set<Handler> connections = ConcurrentHashMap.newKeySet();
+    private static volatile boolean stopping;
+    // When a shutdown gives up waiting for outboxes to drain.
+    private static volatile long shutdownDeadline;
 
     /**
      * The main method that runs the chat server.
      *
-     * @param args Command-line arguments (not used).
+     * @param args Command-line options, see {@link ServerConfig}.
      * @throws Exception If an error occurs.
      */
     public static void main(String[] args) throws Exception {
-        System.out.println("The chat server is running on port " + PORT);
-        // Create a new server socket
-        try (ServerSocket listener = new ServerSocket(PORT)) {
-            while (true) {
-                // Wait for a client to connect and create a new thread for them
-                new Handler(listener.accept()).start();
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println("Usage: java ChatServer [--port=N] [--mode=thread|virtual|nio] [--event-loops=N]"
+                    + " [--high-watermark=N] [--low-watermark=N]"
+                    + " [--overflow-policy=drop-oldest|drop-newest|disconnect] [--room-shards=N]"
+                    + " [--batch-window-ms=N] [--batch-bytes=N]"
+                    + " [--log-dir=PATH] [--log-segment-mb=N] [--replay=N] [--admin-port=N] [--compression-level=N]"
+                    + " [--message-rate=N] [--byte-rate=N]"
+                    + " [--heartbeat-ms=N] [--idle-timeout-ms=N] [--shutdown-timeout-ms=N]"
+                    + " [--node-id=NAME] [--relay-port=N] [--relay-bind=HOST] [--peers=HOST:PORT,...]");
+            return;
+        }
+
+        System.out.println("The chat server is running on port " + config.getPort()
+                + " (" + config.getMode().name().toLowerCase() + " mode)");
+        if (config.getAdminPort() != 0) {
+            AdminServer admin = new AdminServer(config.getAdminPort(), Metrics.SERVER);
+            System.out.println("Metrics are at http://127.0.0.1:" + admin.getPort() + "/metrics");
+        }
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            NioChatServer server = new NioChatServer(config);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "chat-shutdown"));
+            server.run();
+            return;
+        }
+
+        // Writer tasks drain each client's outbox; in virtual mode they get
+        // virtual threads too.
+        ExecutorService handlers = config.getMode() == ServerConfig.Mode.VIRTUAL
+                ? newVirtualThreadExecutor()
+                : null;
+        writers = handlers != null ? handlers : Executors.newCachedThreadPool(ChatServer::newWriterThread);
+        batchTimer = Executors.newSingleThreadScheduledExecutor(ChatServer::newWriterThread);
+        rooms = new RoomRegistry(config);
+        usernames = new UsernameRegistry();
+        if (config.getHeartbeatNanos() > 0 || config.getIdleTimeoutNanos() > 0) {
+            reaper = new IdleReaper(config);
+        }
+
+        // Create a new server socket. It stays in blocking mode; the channel
+        // lets writer tasks hand buffers straight to the socket.
+        try {
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(config.getPort()));
+            Runtime.getRuntime().addShutdownHook(new Thread(ChatServer::shutdown, "chat-shutdown"));
+            while (!stopping) {
+                // Wait for a client to connect and run a handler for them
+                Handler handler = new Handler(listener.accept());
+                if (handlers != null) {
+                    handlers.execute(handler);
+                } else {
+                    new Thread(handler).start();
+                }
             }
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+            // A shutdown closes the listener to stop the loop; that is no error.
+            if (!stopping) {
+                System.err.println("Server error: " + e.getMessage());
+                if (listener != null) {
+                    listener.close();
+                }
+                writers.shutdown();
+                batchTimer.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Stops the server gracefully. Runs as a shutdown hook: stops accepting,
+     * tells every client, stops reading from them and waits until their
+     * outboxes are drained or the shutdown timeout passes, then closes
+     * whatever is still open and flushes the message log.
+     */
+    private static void shutdown() {
+        shutdownDeadline = System.nanoTime() + config.getShutdownTimeoutNanos();
+        stopping = true;
+        System.out.println("Shutting down; " + connections.size() + " clients connected.");
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        for (Handler handler : connections) {
+            handler.stop();
+        }
+        try {
+            while (!connections.isEmpty() && System.nanoTime() - shutdownDeadline < 0) {
+                Thread.sleep(10);
+            }
+            for (Handler handler : connections) {
+                handler.closeSocket();
+            }
+            if (reaper != null) {
+                reaper.stop();
+            }
+            rooms.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        writers.shutdown();
+        batchTimer.shutdown();
     }
 
     /**
-     * A handler thread class. Handlers are spawned from the listening loop and
-     * are responsible for a single client's communication.
+     * Creates an executor that starts a new virtual thread for each task.
+     * The factory method is looked up reflectively so the server still
+     * compiles on JDKs without virtual threads; on those it falls back to a
+     * cached pool of platform threads.
+     *
+     * @return The executor to run handlers on.
      */
-    private static class Handler extends Thread {
-        private Socket socket;
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads need Java 21 or later; using platform threads instead.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static Thread newWriterThread(Runnable task) {
+        Thread thread = new Thread(task, "chat-writer");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * A client handler. Handlers are created by the listening loop, run on
+     * their own platform or virtual thread, and are responsible for reading
+     * a single client's lines into its {@link ChatSession}. Writes to the
+     * client go through its {@link Outbox}, which is drained by a separate
+     * writer task.
+     */
+    private static class Handler implements Runnable, IdleReaper.Watched {
+        private SocketChannel socket;
+        // When the connection was accepted, for the accept latency metric.
+        private final long acceptedAt = System.nanoTime();
         private BufferedReader in;
-        private PrintWriter out;
+        private BinaryProtocol.Reader frames;
+        // Set before anything is queued if the client asked for compression.
+        private DeflatingChannel deflating;
+        private Outbox out;
+        // Volatile because the reaper and a shutdown use it from other threads.
+        private volatile ChatSession session;
+        // When the client last sent a line, on the reaper's clock.
+        private volatile long lastActive;
 
         /**
          * Constructor for the Handler class.
          *
          * @param socket The client socket.
          */
-        public Handler(Socket socket) {
+        public Handler(SocketChannel socket) {
             this.socket = socket;
         }
 
         /**
-         * The main method for the handler thread.
+         * The main method for the handler.
          */
+        @Override
         public void run() {
-            String username = null;
+            Metrics.SERVER.accepted(System.nanoTime() - acceptedAt);
+            connections.add(this);
+            if (reaper != null) {
+                lastActive = reaper.now();
+                reaper.watch(this);
+            }
             try {
-                // Initialize input and output streams for the client socket
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                // Get a username for this client.
-                username = in.readLine();
-                if (username == null || username.trim().isEmpty()) {
+                // Checked after joining the set, so a shutdown either sees
+                // this handler or is seen by it.
+                if (stopping) {
                     return;
                 }
+                // Initialize the input stream and outbox for the client socket
+                InputStream input = new BufferedInputStream(socket.socket().getInputStream());
+                out = new Outbox(config, WRITER_SCHEDULER, this::drain, this::evict);
 
-                // Add the client's print writer to the set of all writers so they can receive
-                // messages.
-                synchronized (clientWriters) {
-                    clientWriters.add(out);
+                // A client that opens with a handshake gets binary framing,
+                // and compression if it asked and the server allows it.
+                byte[] hello = BinaryProtocol.readHello(input);
+                if (hello != null) {
+                    if (hello == BinaryProtocol.HELLO_DEFLATE && config.getCompressionLevel() > 0) {
+                        deflating = new DeflatingChannel(socket, config.getCompressionLevel(), hello);
+                        deflating.flushPending();
+                    } else {
+                        out.offer(Frame.wrap(BinaryProtocol.HELLO));
+                    }
+                    out.useBinaryFraming();
+                    frames = new BinaryProtocol.Reader(input);
+                } else {
+                    in = new BufferedReader(new InputStreamReader(input, CHARSET));
                 }
 
-                System.out.println(username + " joined the chat.");
+                session = new ChatSession(rooms, usernames, out, config);
 
-                // Accept messages from this client and broadcast them.
-                String input;
-                while ((input = in.readLine()) != null) {
-                    if (input.equalsIgnoreCase("exit") || input.equalsIgnoreCase("quit")) {
-                        break;
+                // The first line is the username; later lines are messages and
+                // commands. Broadcasting only enqueues, so no socket I/O happens
+                // on the sender's thread.
+                String line;
+                while ((line = readLine()) != null) {
+                    if (reaper != null) {
+                        lastActive = reaper.now();
                     }
-                    // Broadcast the received message to all other clients
-                    synchronized (clientWriters) {
-                        for (PrintWriter writer : clientWriters) {
-                            writer.println("MESSAGE " + username + ": " + input);
-                        }
+                    if (!session.onLine(line)) {
+                        break;
                     }
                 }
             } catch (IOException e) {
-                System.out.println("Error with client " + (username != null ? username : "unknown") + ": " + e);
+                // An evicted or reaped client's socket was closed on purpose; don't report it.
+                if (socket.isOpen() && (out == null || !out.isClosed())) {
+                    System.out.println("Error with client " + username() + ": " + e);
+                }
             } finally {
-                // This client is going down! Remove its print writer and close its socket.
+                // This client is going down! Leave its rooms and close its socket.
+                if (session != null) {
+                    session.close();
+                }
                 if (out != null) {
-                    synchronized (clientWriters) {
-                        clientWriters.remove(out);
+                    // In a shutdown, first let the client have what it is still owed.
+                    if (stopping) {
+                        try {
+                            out.awaitEmpty(shutdownDeadline);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
                     }
+                    out.close();
                 }
-                if (username != null) {
-                    System.out.println(username + " left the chat.");
+                if (deflating != null) {
+                    deflating.close();
                 }
+                closeSocket();
+                connections.remove(this);
+            }
+        }
+
+        @Override
+        public long lastActive() {
+            return lastActive;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return socket.isOpen();
+        }
+
+        /**
+         * Pings the client, once it has picked its framing.
+         */
+        @Override
+        public void ping() {
+            ChatSession current = session;
+            if (current != null) {
+                current.ping();
+            }
+        }
+
+        /**
+         * Called by the reaper for a client that stayed quiet too long.
+         * Closing the socket ends the reader loop, which does the cleanup.
+         */
+        @Override
+        public void reap() {
+            System.out.println(username() + " was disconnected for being idle.");
+            closeSocket();
+        }
+
+        /**
+         * Starts this client's part of a shutdown: tells the client, and
+         * shuts the input so the reader loop ends and the cleanup waits for
+         * the outbox to drain.
+         */
+        void stop() {
+            ChatSession current = session;
+            if (current != null) {
+                current.shuttingDown();
+            }
+            try {
+                socket.shutdownInput();
+            } catch (IOException e) {
+                closeSocket();
+            }
+        }
+
+        void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+
+        /**
+         * Reads the next line in whichever framing the client chose.
+         *
+         * @return The line, or null at the end of the stream.
+         * @throws IOException If reading fails or a frame is malformed.
+         */
+        private String readLine() throws IOException {
+            if (frames == null) {
+                return in.readLine();
+            }
+            String line = frames.read();
+            if (line != null && frames.type() != BinaryProtocol.LINE) {
+                throw new IOException("Unexpected frame type " + frames.type());
+            }
+            return line;
+        }
+
+        /**
+         * Called when the outbox gives up on a client that reads too slowly.
+         * Closing the socket ends the reader loop, which does the cleanup.
+         */
+        private void evict() {
+            System.out.println(username() + " was disconnected for falling behind.");
+            closeSocket();
+        }
+
+        private String username() {
+            String username = session != null ? session.getUsername() : null;
+            return username != null ? username : "unknown";
+        }
+
+        /**
+         * Writer task: flushes the outbox to the socket. The socket is in
+         * blocking mode, so a single call drains everything queued.
+         */
+        private void drain() {
+            try {
+                out.drainTo(deflating != null ? deflating : socket);
+            } catch (IOException e) {
+                // Closing the socket also ends the reader loop in run().
+                out.close();
                 try {
                     socket.close();
-                } catch (IOException e) {
+                } catch (IOException ignored) {
                     // Ignore
                 }
             }
@@ -0,0 +1,302 @@
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The protocol state of one connected client, shared by the threaded and
+ * NIO servers. The server decodes lines from the socket and feeds them to
+ * {@link #onLine(String)}; everything sent to the client goes through its
+ * {@link Outbox}.
+ * <p>
+ * The first line a client sends is its username. After that every line is
+ * a chat message for its current room, or one of these commands:
+ * <ul>
+ * <li>{@code /join <room>} subscribes to a room and makes it current</li>
+ * <li>{@code /leave <room>} unsubscribes from a room</li>
+ * <li>{@code exit} or {@code quit} disconnects</li>
+ * <li>{@code PONG} answers the server's {@code PING}; it is taken as the
+ *     answer only while a {@code PING} is unanswered, and is otherwise an
+ *     ordinary line, so it can still be a username or a message</li>
+ * </ul>
+ * Every client starts in the {@value #LOBBY} room. Messages in the lobby
+ * are sent as {@code MESSAGE <user>: <text>}, as before rooms existed;
+ * messages in other rooms carry the room name, {@code MESSAGE [<room>] <user>: <text>}.
+ * Lines may arrive in {@link BinaryProtocol} frames instead, in which case
+ * messages can span several lines.
+ * <p>
+ * A username already in use is refused with a notice, and the next line is
+ * taken as another try. Every line, username tries included, passes through
+ * token buckets for messages and bytes per second before it is acted on;
+ * lines over the limit are dropped, and the client is told once each time
+ * it starts being throttled.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class ChatSession {
+    /** The room every client joins on connecting. */
+    public static final String LOBBY = "lobby";
+    // Longest room name a client may use.
+    private static final int MAX_ROOM_NAME = 32;
+
+    private final RoomRegistry rooms;
+    private final UsernameRegistry usernames;
+    private final Outbox outbox;
+    // Null when the limit is off.
+    private final TokenBucket messageBucket;
+    private final TokenBucket byteBucket;
+    private boolean throttled;
+    // Written only by the reading thread; volatile for the metrics report.
+    private volatile long throttledLines;
+    // Only touched by the thread reading this client's lines.
+    private final Set<String> joined = new LinkedHashSet<>();
+    private String currentRoom;
+    // Volatile because writer threads read it when logging an eviction.
+    private volatile String username;
+    // Set by the reaper thread when it pings, cleared by the reading thread.
+    private volatile boolean pinged;
+
+    /**
+     * Creates the session for a newly accepted connection.
+     *
+     * @param rooms     The server's rooms.
+     * @param usernames The usernames in use.
+     * @param outbox    The client's outbox.
+     * @param config    The server configuration, for the rate limits.
+     */
+    public ChatSession(RoomRegistry rooms, UsernameRegistry usernames, Outbox outbox, ServerConfig config) {
+        this.rooms = rooms;
+        this.usernames = usernames;
+        this.outbox = outbox;
+        // A client may burst up to one second's worth of either limit.
+        int messageRate = config.getMessageRate();
+        int byteRate = config.getByteRate();
+        this.messageBucket = messageRate > 0 ? new TokenBucket(messageRate, messageRate) : null;
+        this.byteBucket = byteRate > 0 ? new TokenBucket(byteRate, byteRate) : null;
+        Metrics.SERVER.connected(this);
+    }
+
+    /**
+     * Handles one line from the client.
+     *
+     * @param line The line without its terminator.
+     * @return False if the connection should be closed.
+     */
+    public boolean onLine(String line) {
+        if (pinged && line.equals("PONG")) {
+            // Reading it was all the server needed; it proves the client is alive.
+            pinged = false;
+            return true;
+        }
+        Metrics.SERVER.messageIn();
+        if (username == null) {
+            if (line.trim().isEmpty()) {
+                return false;
+            }
+            if (!allow(line)) {
+                return true;
+            }
+            if (!usernames.register(line, this)) {
+                notice(usernameTaken(line));
+                return true;
+            }
+            username = line;
+            System.out.println(username + " joined the chat.");
+            join(LOBBY);
+            return true;
+        }
+        if (line.equalsIgnoreCase("exit") || line.equalsIgnoreCase("quit")) {
+            return false;
+        }
+        if (!allow(line)) {
+            return true;
+        }
+        if (line.startsWith("/join ") || line.startsWith("/leave ")) {
+            String room = line.substring(line.indexOf(' ') + 1).trim();
+            if (!isValidRoomName(room)) {
+                notice("Room names are 1-" + MAX_ROOM_NAME + " letters, digits, '-' or '_'.");
+            } else if (line.startsWith("/join ")) {
+                join(room);
+                notice("You are now talking in " + room + ".");
+            } else {
+                leave(room);
+            }
+            return true;
+        }
+        if (currentRoom == null) {
+            notice("You are not in any room. Use /join <room> to enter one.");
+            return true;
+        }
+        Frame frame = currentRoom.equals(LOBBY)
+                ? Frame.message(username, line)
+                : Frame.line("MESSAGE", "[", currentRoom, "] ", username, ": ", line);
+        rooms.publish(currentRoom, frame);
+        frame.release();
+        return true;
+    }
+
+    /**
+     * Charges a line to the client's rate limits.
+     *
+     * @param line The line.
+     * @return False if the line is over a limit and must be dropped.
+     */
+    private boolean allow(String line) {
+        long now = System.nanoTime();
+        int bytes = utf8Length(line);
+        // Check both before charging either, so a line refused by one limit
+        // costs nothing against the other.
+        if ((messageBucket == null || messageBucket.canTake(1, now))
+                && (byteBucket == null || byteBucket.canTake(bytes, now))) {
+            if (messageBucket != null) {
+                messageBucket.take(1);
+            }
+            if (byteBucket != null) {
+                byteBucket.take(bytes);
+            }
+            throttled = false;
+            return true;
+        }
+        throttledLines++;
+        Metrics.SERVER.throttled(!throttled);
+        if (!throttled) {
+            throttled = true;
+            notice("You are sending too fast; messages are dropped until you slow down.");
+        }
+        return false;
+    }
+
+    private static int utf8Length(String line) {
+        int length = line.length();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c >= 0x800 && !Character.isSurrogate(c)) {
+                length += 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Checks a room name. Names double as message log directory names, so
+     * only a safe set of characters is allowed.
+     *
+     * @param room The requested name.
+     * @return True if the name can be used.
+     */
+    private static boolean isValidRoomName(String room) {
+        if (room.isEmpty() || room.length() > MAX_ROOM_NAME) {
+            return false;
+        }
+        for (int i = 0; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void join(String room) {
+        if (joined.add(room)) {
+            rooms.join(room, outbox);
+        }
+        currentRoom = room;
+    }
+
+    private void leave(String room) {
+        if (!joined.remove(room)) {
+            notice("You are not in " + room + ".");
+            return;
+        }
+        rooms.leave(room, outbox);
+        if (room.equals(currentRoom)) {
+            // Fall back to the most recently joined room that is left.
+            currentRoom = null;
+            for (String other : joined) {
+                currentRoom = other;
+            }
+        }
+        notice("You left " + room + (currentRoom != null ? "; now talking in " + currentRoom + "." : "."));
+    }
+
+    /**
+     * Gets the notice that refuses a username already in use. Clients
+     * recognize it by this text, after the notice's {@code "* "} prefix.
+     *
+     * @param username The refused username.
+     * @return The notice text.
+     */
+    static String usernameTaken(String username) {
+        return "The username " + username + " is taken. Please send another.";
+    }
+
+    /**
+     * Sends a server notice to this client only.
+     *
+     * @param text The notice text.
+     */
+    private void notice(String text) {
+        outbox.offer(Frame.line("MESSAGE", "* ", text));
+    }
+
+    /**
+     * Sends the client a heartbeat {@code PING}, which it should answer with
+     * {@code PONG}.
+     */
+    public void ping() {
+        pinged = true;
+        outbox.offer(Frame.line("PING"));
+    }
+
+    /**
+     * Tells the client that the server is going down. Anything it sends
+     * from now on is not read.
+     */
+    public void shuttingDown() {
+        notice("The server is shutting down.");
+    }
+
+    /**
+     * Leaves every room. Called once when the connection closes.
+     */
+    public void close() {
+        for (String room : joined) {
+            rooms.leave(room, outbox);
+        }
+        joined.clear();
+        Metrics.SERVER.disconnected(this);
+        if (username != null) {
+            usernames.unregister(username, this);
+            System.out.println(username + " left the chat.");
+        }
+    }
+
+    /**
+     * Gets the client's username.
+     *
+     * @return The username, or null before the client has sent one.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Gets how many of the client's lines were dropped by its rate limits.
+     *
+     * @return The number of throttled lines.
+     */
+    public long getThrottledLines() {
+        return throttledLines;
+    }
+
+    /**
+     * Gets the client's outbox.
+     *
+     * @return The outbox.
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Joins this server to others so that a broadcast published on any node
+ * reaches the subscribers of its room on every node.
+ * <p>
+ * Each node relays only the messages its own clients publish, tagged with
+ * its node id and a message id, and fans relayed messages out to its own
+ * local subscribers without relaying them again. Ids already seen from an
+ * origin within the last {@value #DEDUPE_WINDOW} messages are dropped, so
+ * a transport that delivers a message twice does not show it twice.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class Cluster implements RelayTransport.Listener {
+    // Recently seen message ids remembered for deduplication.
+    private static final int DEDUPE_WINDOW = 64 * 1024;
+
+    private final String nodeId;
+    private final RelayTransport transport;
+    private final RoomRegistry rooms;
+    // Ids start at the clock in microseconds, so a restarted node does not
+    // reuse ids that are still in other nodes' dedupe windows.
+    private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final Map<String, Boolean> seen = new LinkedHashMap<>(DEDUPE_WINDOW, 0.75f) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > DEDUPE_WINDOW;
+        }
+    };
+
+    /**
+     * Creates the cluster membership for a server and starts its transport.
+     *
+     * @param config The server configuration.
+     * @param rooms  The local rooms relayed messages are delivered to.
+     * @throws IOException If the relay port cannot be bound.
+     */
+    public Cluster(ServerConfig config, RoomRegistry rooms) throws IOException {
+        this.nodeId = config.getNodeId();
+        this.rooms = rooms;
+        this.transport = new TcpRelayTransport(
+                new InetSocketAddress(config.getRelayBind(), config.getRelayPort()), config.getPeers());
+        System.out.println("Node " + nodeId + " relaying on port " + config.getRelayPort()
+                + " to " + config.getPeers().size() + " peer(s)");
+        transport.start(this);
+    }
+
+    /**
+     * Sends a locally published frame to the other nodes.
+     *
+     * @param room  The room it was published to.
+     * @param frame The frame; the caller holds a reference.
+     */
+    public void relay(String room, Frame frame) {
+        // The binary form holds the frame type and the payload unflattened.
+        ByteBuffer binary = frame.binary().view();
+        byte type = binary.get(4);
+        byte[] payload = new byte[binary.remaining() - BinaryProtocol.HEADER_BYTES];
+        binary.position(BinaryProtocol.HEADER_BYTES);
+        binary.get(payload);
+        transport.send(new RelayTransport.Message(nodeId, nextId.getAndIncrement(), room, type, payload));
+        Metrics.SERVER.relayedOut();
+    }
+
+    @Override
+    public void onMessage(RelayTransport.Message message) {
+        String keyword = BinaryProtocol.keywordOf(message.type);
+        if (message.origin.equals(nodeId) || keyword == null || !firstSighting(message)) {
+            Metrics.SERVER.relayDiscarded();
+            return;
+        }
+        Metrics.SERVER.relayedIn();
+        Frame frame = Frame.line(keyword, new String(message.payload, StandardCharsets.UTF_8));
+        rooms.deliver(message.room, frame);
+        frame.release();
+    }
+
+    private boolean firstSighting(RelayTransport.Message message) {
+        synchronized (seen) {
+            return seen.put(message.origin + '/' + message.id, Boolean.TRUE) == null;
+        }
+    }
+
+    /**
+     * Stops relaying.
+     */
+    public void close() {
+        transport.close();
+    }
+}
@@ -0,0 +1,159 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures what compressing server frames costs in CPU and saves on the
+ * wire. It builds a stream of synthetic chat messages as binary frames and
+ * pushes them through a {@link DeflatingChannel} into a channel that only
+ * counts bytes, for each combination of compression level, preset
+ * dictionary and batch size (the frames per gathering write, and so per
+ * sync flush). Everything runs on one thread, so the time per message is
+ * the CPU cost a server pays per compressed client. The dictionary matters
+ * mostly at the start of a stream, before the window fills with the
+ * stream's own history, so the size of the first messages is shown apart.
+ * <p>
+ * Options: {@code --messages=N} messages per run (default 200000) and
+ * {@code --seed=N} for the random text (default 1).
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class CompressionBenchmark {
+    private static final int[] LEVELS = {1, 6, 9};
+    private static final int[] BATCHES = {1, 8, 64};
+    // Messages counted as the start of a stream; a multiple of every batch size.
+    private static final int EARLY = 128;
+    private static final String[] WORDS = ("the you and to that it is was for are have what not this but with just"
+            + " like know can so will all your get about there when out they one how good yes no ok lol meeting"
+            + " tomorrow lunch build deploy tests passing broken fixed merged review thanks sure later today").split(" ");
+    private static final String[] ROOMS = {"lobby", "dev", "random", "ops"};
+
+    /**
+     * The main method that runs the benchmark.
+     *
+     * @param args Command-line options, see above.
+     * @throws Exception If a run fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int messages = 200_000;
+        long seed = 1;
+        for (String arg : args) {
+            if (arg.startsWith("--messages=")) {
+                messages = Math.max(EARLY, Integer.parseInt(arg.substring("--messages=".length())));
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(arg.substring("--seed=".length()));
+            } else {
+                System.err.println("Usage: java CompressionBenchmark [--messages=N] [--seed=N]");
+                return;
+            }
+        }
+        ByteBuffer[] frames = frames(messages, new Random(seed));
+        long raw = 0;
+        long earlyRaw = 0;
+        for (int i = 0; i < frames.length; i++) {
+            raw += frames[i].remaining();
+            if (i < EARLY) {
+                earlyRaw += frames[i].remaining();
+            }
+        }
+        System.out.printf(Locale.ROOT, "%d messages, %d bytes uncompressed (%.1f per message)%n",
+                messages, raw, (double) raw / messages);
+        System.out.printf(Locale.ROOT, "%-6s %-5s %6s %12s %7s %11s %10s %8s%n",
+                "level", "dict", "batch", "bytes", "ratio", "early ratio", "ns/msg", "MB/s");
+        for (int level : LEVELS) {
+            for (boolean dictionary : new boolean[] {true, false}) {
+                for (int batch : BATCHES) {
+                    // The first run warms up the JIT and is not reported.
+                    run(frames, level, dictionary, batch);
+                    long start = System.nanoTime();
+                    Counter counter = run(frames, level, dictionary, batch);
+                    long nanos = System.nanoTime() - start;
+                    System.out.printf(Locale.ROOT, "%-6d %-5s %6d %12d %7.3f %11.3f %10.1f %8.1f%n",
+                            level, dictionary ? "yes" : "no", batch, counter.bytes, (double) counter.bytes / raw,
+                            (double) counter.early / earlyRaw, (double) nanos / messages, raw * 1000.0 / nanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compresses every frame in batches and returns the compressed sizes.
+     */
+    private static Counter run(ByteBuffer[] frames, int level, boolean dictionary, int batch) throws Exception {
+        Counter counter = new Counter();
+        DeflatingChannel deflating = new DeflatingChannel(counter, level, new byte[0],
+                dictionary ? BinaryProtocol.DEFLATE_DICTIONARY : null);
+        try {
+            for (int i = 0; i < frames.length; i += batch) {
+                int length = Math.min(batch, frames.length - i);
+                for (int j = i; j < i + length; j++) {
+                    frames[j].rewind();
+                }
+                deflating.write(frames, i, length);
+                if (i + length == EARLY) {
+                    counter.early = counter.bytes;
+                }
+            }
+        } finally {
+            deflating.close();
+        }
+        return counter;
+    }
+
+    /**
+     * Builds message frames like a room's broadcasts: a room tag, a sender
+     * and a few words, with the occasional join notice.
+     */
+    private static ByteBuffer[] frames(int count, Random random) {
+        ByteBuffer[] frames = new ByteBuffer[count];
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.setLength(0);
+            String room = ROOMS[random.nextInt(ROOMS.length)];
+            String user = "user" + random.nextInt(500);
+            if (random.nextInt(50) == 0) {
+                text.append("[").append(room).append("] * ").append(user).append(" joined ").append(room);
+            } else {
+                text.append("[").append(room).append("] ").append(user).append(":");
+                int words = 3 + random.nextInt(12);
+                for (int w = 0; w < words; w++) {
+                    text.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+                }
+            }
+            byte[] payload = text.toString().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = ByteBuffer.allocateDirect(BinaryProtocol.HEADER_BYTES + payload.length);
+            frame.putInt(payload.length).put(BinaryProtocol.MESSAGE).put(payload).flip();
+            frames[i] = frame;
+        }
+        return frames;
+    }
+
+    /**
+     * A channel that takes everything and only counts it.
+     */
+    private static class Counter implements WritableByteChannel {
+        private long bytes;
+        // The bytes written for the first EARLY messages.
+        private long early;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            src.position(src.limit());
+            bytes += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
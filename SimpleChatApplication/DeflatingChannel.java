@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses everything written through it into one deflate stream on the
+ * underlying channel, for clients that negotiated
+ * {@link BinaryProtocol#HELLO_DEFLATE}.
+ * <p>
+ * An {@link Outbox} drains into this channel exactly as into a socket.
+ * Each gathering write is one batch: all of it is consumed and compressed,
+ * then the stream is sync-flushed so the client can decode every frame in
+ * the batch at once, and the compressed bytes go to the socket in one
+ * write. If the socket does not take them all, the rest is kept and later
+ * writes consume nothing until {@link #flushPending()} has sent it, which
+ * makes a non-blocking outbox wait for the socket just as it would without
+ * compression. Larger batches (see {@code --batch-window-ms}) compress
+ * better, since a sync flush costs a few bytes and a byte-aligned block.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class DeflatingChannel implements GatheringByteChannel {
+    // Server-wide totals before and after compression.
+    private static final LongAdder totalIn = new LongAdder();
+    private static final LongAdder totalOut = new LongAdder();
+
+    private final WritableByteChannel channel;
+    private final Deflater deflater;
+    // Compressed bytes not yet written, in read mode between writes.
+    private ByteBuffer pending;
+    private boolean closed;
+
+    /**
+     * Starts a stream.
+     *
+     * @param channel The channel to write compressed bytes to.
+     * @param level   The {@link Deflater} compression level, 1 to 9.
+     * @param prefix  Bytes to send uncompressed before the stream, such as
+     *                the handshake answer; may be empty.
+     */
+    public DeflatingChannel(WritableByteChannel channel, int level, byte[] prefix) {
+        this(channel, level, prefix, BinaryProtocol.DEFLATE_DICTIONARY);
+    }
+
+    /**
+     * Starts a stream with another preset dictionary, or none, for
+     * {@link CompressionBenchmark}; clients only understand the standard one.
+     */
+    DeflatingChannel(WritableByteChannel channel, int level, byte[] prefix, byte[] dictionary) {
+        this.channel = channel;
+        this.deflater = new Deflater(level, true);
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        pending = ByteBuffer.allocateDirect(Math.max(4096, prefix.length));
+        pending.put(prefix).flip();
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!flushPending()) {
+            return 0;
+        }
+        pending.clear();
+        long consumed = 0;
+        for (int i = offset; i < offset + length; i++) {
+            consumed += srcs[i].remaining();
+            deflater.setInput(srcs[i]);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+        // Keep going until a flush leaves room to spare, so nothing is held back.
+        deflate(Deflater.SYNC_FLUSH);
+        while (!pending.hasRemaining()) {
+            deflate(Deflater.SYNC_FLUSH);
+        }
+        pending.flip();
+        totalIn.add(consumed);
+        totalOut.add(pending.remaining());
+        flushPending();
+        return consumed;
+    }
+
+    private void deflate(int flush) {
+        if (!pending.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(pending.capacity() * 2);
+            pending.flip();
+            pending = larger.put(pending);
+        }
+        deflater.deflate(pending, flush);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    /**
+     * Writes compressed bytes left over from an earlier write.
+     *
+     * @return True if nothing is left over.
+     * @throws IOException If the write fails.
+     */
+    public synchronized boolean flushPending() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        while (pending.hasRemaining()) {
+            if (channel.write(pending) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * Frees the compressor, waiting for a write in progress on another
+     * thread. The underlying channel is closed by its owner.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            deflater.end();
+        }
+    }
+
+    /**
+     * Gets the bytes compressed by every stream in the server.
+     *
+     * @return The uncompressed byte count.
+     */
+    public static long totalBytesIn() {
+        return totalIn.sum();
+    }
+
+    /**
+     * Gets the compressed bytes produced by every stream in the server.
+     *
+     * @return The compressed byte count.
+     */
+    public static long totalBytesOut() {
+        return totalOut.sum();
+    }
+}
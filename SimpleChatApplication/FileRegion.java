@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Content sent to one client straight from files with
+ * {@link java.nio.channels.FileChannel#transferTo}, rather than from a
+ * buffer. A region may be queued before its content is known: an outbox
+ * stops at a region that is not {@link #isReady() ready} and carries on
+ * once the region calls {@link Outbox#resume()}. See {@link MessageLog}.
+ * <p>
+ * A region is never shared, so it is written and released by one outbox.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public abstract class FileRegion implements Outgoing {
+
+    /**
+     * Tells whether the region's content is known yet.
+     *
+     * @return True once it can be written.
+     */
+    public abstract boolean isReady();
+
+    /**
+     * Writes as much of the region as the channel accepts.
+     *
+     * @param channel The client's channel.
+     * @return True once the whole region has been written.
+     * @throws IOException If the transfer fails.
+     */
+    public abstract boolean transferTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * Counts for nothing in the outbox's queued bytes, since the size is not
+     * known when the region is queued.
+     *
+     * @return 0.
+     */
+    @Override
+    public int length() {
+        return 0;
+    }
+
+    /**
+     * Does nothing by default; override to free what the region holds.
+     */
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,236 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded protocol line shared by every client it is sent to.
+ * A broadcast encodes its line once into a pooled direct buffer; each
+ * recipient's outbox holds a reference and writes from its own read-only
+ * view, and the buffer goes back to the pool when the last reference is
+ * released.
+ * <p>
+ * Protocol lines made with {@link #line} also have a {@link #binary()}
+ * form for clients that negotiated {@link BinaryProtocol} framing. It is
+ * encoded the first time such a client is sent the frame and then shared
+ * the same way.
+ * <p>
+ * Content written straight from files is a {@link FileRegion} instead.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public final class Frame implements Outgoing {
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(() -> ChatServer.CHARSET
+            .newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private final ByteBuffer buffer;
+    private final BufferPool pool;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    // For protocol lines: the binary frame type and the unflattened parts of
+    // the payload, kept until the binary form is encoded.
+    private byte type;
+    private CharSequence[] parts;
+    // The binary form, once encoded; this frame holds one reference to it.
+    private volatile Frame binary;
+
+    private Frame(ByteBuffer buffer, BufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * Encodes a chat message line into a pooled buffer. The caller owns the
+     * single reference the new frame starts with.
+     *
+     * @param username The sender's username.
+     * @param message  The message text.
+     * @return The encoded frame.
+     */
+    public static Frame message(String username, String message) {
+        return line("MESSAGE", username, ": ", message);
+    }
+
+    /**
+     * Encodes a protocol line: a keyword, a space, the parts and a line
+     * separator, or just the keyword and separator if there are no parts.
+     * Line breaks inside the parts are turned into spaces in the text form,
+     * and kept in the binary form.
+     *
+     * @param keyword The keyword; it must have a {@link BinaryProtocol} type.
+     * @param parts   The rest of the line, in order.
+     * @return The encoded frame.
+     */
+    public static Frame line(String keyword, CharSequence... parts) {
+        CharSequence[] text = new CharSequence[parts.length + 2];
+        text[0] = keyword;
+        text[1] = parts.length > 0 ? " " : "";
+        for (int i = 0; i < parts.length; i++) {
+            text[i + 2] = flatten(parts[i]);
+        }
+        Frame frame = encode(text, 0, System.lineSeparator());
+        frame.type = BinaryProtocol.typeOf(keyword);
+        frame.parts = parts;
+        return frame;
+    }
+
+    /**
+     * Wraps fixed bytes, such as a handshake, in an unpooled frame.
+     *
+     * @param bytes The bytes; they must not change afterwards.
+     * @return The frame.
+     */
+    public static Frame wrap(byte[] bytes) {
+        return new Frame(ByteBuffer.wrap(bytes), null);
+    }
+
+    private static CharSequence flatten(CharSequence part) {
+        for (int i = 0; i < part.length(); i++) {
+            char c = part.charAt(i);
+            if (c == '\n' || c == '\r') {
+                return part.toString().replace('\r', ' ').replace('\n', ' ');
+            }
+        }
+        return part;
+    }
+
+    /**
+     * Encodes the concatenation of the given parts without building the
+     * joined string first.
+     *
+     * @param parts The text to encode, in order.
+     * @return The encoded frame.
+     */
+    public static Frame encode(CharSequence... parts) {
+        return encode(parts, 0, "");
+    }
+
+    /**
+     * Encodes the parts and a suffix after {@code headerBytes} bytes left
+     * free for the caller to fill in.
+     */
+    private static Frame encode(CharSequence[] parts, int headerBytes, CharSequence suffix) {
+        CharsetEncoder encoder = ENCODER.get();
+        int chars = suffix.length();
+        for (CharSequence part : parts) {
+            chars += part.length();
+        }
+        BufferPool pool = BufferPool.SHARED;
+        ByteBuffer buffer = pool.acquire(headerBytes + (int) Math.ceil(chars * (double) encoder.maxBytesPerChar()));
+        buffer.position(headerBytes);
+        encoder.reset();
+        try {
+            for (CharSequence part : parts) {
+                check(encoder.encode(CharBuffer.wrap(part), buffer, false));
+            }
+            check(encoder.encode(CharBuffer.wrap(suffix), buffer, true));
+            check(encoder.flush(buffer));
+        } catch (CharacterCodingException e) {
+            pool.release(buffer);
+            throw new IllegalStateException("Could not encode frame", e);
+        }
+        buffer.flip();
+        return new Frame(buffer, pool);
+    }
+
+    private static void check(CoderResult result) throws CharacterCodingException {
+        if (result.isError() || result.isOverflow()) {
+            result.throwException();
+        }
+    }
+
+    /**
+     * Adds a reference, for handing the frame to one more recipient.
+     *
+     * @return This frame.
+     */
+    public Frame retain() {
+        if (refs.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Frame retained after its last release");
+        }
+        return this;
+    }
+
+    /**
+     * Drops a reference. The last release returns the buffer to the pool,
+     * after which no view of this frame may be used.
+     *
+     * @throws IllegalStateException If every reference was already released.
+     */
+    @Override
+    public void release() {
+        int left = refs.decrementAndGet();
+        if (left < 0) {
+            throw new IllegalStateException("Frame released more often than retained");
+        }
+        if (left == 0) {
+            if (pool != null) {
+                pool.release(buffer);
+            }
+            if (binary != null) {
+                binary.release();
+            }
+        }
+    }
+
+    /**
+     * Gets this line in binary framing, encoding it on first use. The
+     * caller must hold a reference to this frame, and retains the binary
+     * frame if it keeps it.
+     *
+     * @return The binary frame, valid while this frame is.
+     */
+    public Frame binary() {
+        Frame encoded = binary;
+        if (encoded == null) {
+            synchronized (this) {
+                encoded = binary;
+                if (encoded == null) {
+                    encoded = parts != null ? encode(parts, BinaryProtocol.HEADER_BYTES, "") : fromText();
+                    if (parts != null) {
+                        encoded.buffer.putInt(0, encoded.buffer.limit() - BinaryProtocol.HEADER_BYTES).put(4, type);
+                    }
+                    parts = null;
+                    binary = encoded;
+                }
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Converts the text form of a frame that was not made with
+     * {@link #line}, which is a single line.
+     */
+    private Frame fromText() {
+        ByteBuffer out = BufferPool.SHARED.acquire(buffer.limit() + BinaryProtocol.HEADER_BYTES - 1);
+        BinaryProtocol.fromText(buffer, 0, buffer.limit(), out);
+        out.flip();
+        return new Frame(out, BufferPool.SHARED);
+    }
+
+    /**
+     * Creates a read-only view of the encoded bytes with its own position,
+     * so several recipients can write the same frame independently.
+     *
+     * @return A new view positioned at the start of the frame.
+     */
+    public ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets the encoded length.
+     *
+     * @return The frame size in bytes.
+     */
+    @Override
+    public int length() {
+        return buffer.limit();
+    }
+}
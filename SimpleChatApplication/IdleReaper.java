@@ -0,0 +1,244 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Finds connections that have gone quiet, pings them and closes the ones
+ * that stay quiet, for any number of connections on one thread.
+ * <p>
+ * Connections sit in a hashed timing wheel: an array of buckets, one per
+ * tick, that the reaper thread visits in turn. Adding or expiring an entry
+ * is constant time, however many connections there are. Reading from a
+ * connection never touches the wheel; the connection only stores the time
+ * from the reaper's coarse {@link #now()} clock. When an entry comes
+ * due the reaper looks at how long the connection has really been quiet,
+ * and either acts or puts the entry back for when it could next be due. A
+ * busy connection therefore costs one wheel visit per heartbeat period.
+ * <p>
+ * A connection quiet for the heartbeat period is sent a {@code PING}, and
+ * another every period after that, which a live client answers with
+ * {@code PONG}. One quiet for the idle timeout is closed.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class IdleReaper implements Runnable {
+
+    /**
+     * A connection watched by the reaper. {@link #ping()} and {@link #reap()}
+     * are called on the reaper thread and must not block.
+     */
+    public interface Watched {
+        /**
+         * Gets when the connection last received anything.
+         *
+         * @return A time from {@link IdleReaper#now()}.
+         */
+        long lastActive();
+
+        /**
+         * Tells whether the connection is still open. Closed ones are
+         * dropped from the wheel when they next come due.
+         *
+         * @return False once the connection is closed.
+         */
+        boolean isOpen();
+
+        /**
+         * Queues a {@code PING} for the client.
+         */
+        void ping();
+
+        /**
+         * Closes the connection for being idle.
+         */
+        void reap();
+    }
+
+    // Ticks per turn of the wheel; a power of two.
+    private static final int WHEEL_SIZE = 512;
+    private static final long TICK_NANOS = 100_000_000L;
+
+    private static final LongAdder totalPings = new LongAdder();
+    private static final LongAdder totalReaped = new LongAdder();
+
+    private final long heartbeatNanos;
+    private final long idleNanos;
+    private final Entry[] wheel = new Entry[WHEEL_SIZE];
+    // Entries added by other threads, moved into the wheel on the next tick.
+    private final Queue<Entry> added = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    // The time at the start of the current tick; the clock connections use.
+    private volatile long now = System.nanoTime();
+    private long tick;
+    private volatile boolean stopped;
+
+    /**
+     * Creates a reaper and starts its thread.
+     *
+     * @param config The server configuration, for the heartbeat period and
+     *               idle timeout. At least one of them must be on.
+     */
+    public IdleReaper(ServerConfig config) {
+        this.heartbeatNanos = config.getHeartbeatNanos();
+        this.idleNanos = config.getIdleTimeoutNanos();
+        this.thread = new Thread(this, "chat-reaper");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Gets the reaper's clock, which advances once a tick. Cheaper than
+     * {@link System#nanoTime()} and precise enough for idle timeouts.
+     *
+     * @return The current time in nanoseconds.
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Starts watching a connection. It counts as active from now.
+     *
+     * @param watched The connection.
+     */
+    public void watch(Watched watched) {
+        long lastActive = watched.lastActive();
+        added.add(new Entry(watched, lastActive, nextCheck(lastActive, lastActive)));
+    }
+
+    /**
+     * Stops the reaper thread. Connections are no longer pinged or reaped.
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        long start = now;
+        while (!stopped) {
+            long wait = start + (tick + 1) * TICK_NANOS - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            now = System.nanoTime();
+            tick++;
+            Entry entry;
+            while ((entry = added.poll()) != null) {
+                schedule(entry);
+            }
+            int slot = (int) (tick & (WHEEL_SIZE - 1));
+            Entry due = wheel[slot];
+            wheel[slot] = null;
+            while (due != null) {
+                Entry next = due.next;
+                due.next = null;
+                if (due.rounds > 0) {
+                    due.rounds--;
+                    due.next = wheel[slot];
+                    wheel[slot] = due;
+                } else {
+                    expire(due);
+                }
+                due = next;
+            }
+        }
+    }
+
+    /**
+     * Handles an entry whose deadline has passed: pings or reaps the
+     * connection if it is still quiet, and otherwise puts it back.
+     */
+    private void expire(Entry entry) {
+        Watched watched = entry.watched;
+        if (!watched.isOpen()) {
+            return;
+        }
+        long lastActive = watched.lastActive();
+        long quiet = now - lastActive;
+        if (idleNanos > 0 && quiet >= idleNanos) {
+            totalReaped.increment();
+            watched.reap();
+            return;
+        }
+        if (heartbeatNanos > 0 && now - Math.max(lastActive, entry.lastPing) >= heartbeatNanos) {
+            entry.lastPing = now;
+            totalPings.increment();
+            watched.ping();
+        }
+        entry.deadline = nextCheck(lastActive, entry.lastPing);
+        schedule(entry);
+    }
+
+    /**
+     * Works out when a connection could next need a ping or a reaping.
+     *
+     * @param lastActive When the connection was last active.
+     * @param lastPing   When it was last pinged, or {@code lastActive} if
+     *                   it has not been since.
+     */
+    private long nextCheck(long lastActive, long lastPing) {
+        long deadline = Long.MAX_VALUE;
+        if (heartbeatNanos > 0) {
+            deadline = Math.max(lastActive, lastPing) + heartbeatNanos;
+        }
+        if (idleNanos > 0 && (deadline == Long.MAX_VALUE || lastActive + idleNanos - deadline < 0)) {
+            deadline = lastActive + idleNanos;
+        }
+        return deadline;
+    }
+
+    /**
+     * Puts an entry in the bucket of its deadline, or of the next tick if
+     * the deadline has passed. Runs on the reaper thread.
+     */
+    private void schedule(Entry entry) {
+        long ticks = Math.max(1, (entry.deadline - now + TICK_NANOS - 1) / TICK_NANOS);
+        entry.rounds = (ticks - 1) / WHEEL_SIZE;
+        int slot = (int) ((tick + ticks) & (WHEEL_SIZE - 1));
+        entry.next = wheel[slot];
+        wheel[slot] = entry;
+    }
+
+    /**
+     * Gets the number of pings sent to quiet clients.
+     *
+     * @return The total ping count.
+     */
+    public static long totalPings() {
+        return totalPings.sum();
+    }
+
+    /**
+     * Gets the number of connections closed for being idle.
+     *
+     * @return The total reaped count.
+     */
+    public static long totalReaped() {
+        return totalReaped.sum();
+    }
+
+    /**
+     * A watched connection in the wheel. Only touched by the reaper thread
+     * once it has been added.
+     */
+    private static class Entry {
+        private final Watched watched;
+        private long deadline;
+        // Full turns of the wheel left before the entry is due.
+        private long rounds;
+        // When the connection was last pinged.
+        private long lastPing;
+        private Entry next;
+
+        Entry(Watched watched, long lastPing, long deadline) {
+            this.watched = watched;
+            this.lastPing = lastPing;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.Arrays;
+
+/**
+ * A fixed-size histogram of non-negative long values, such as latencies in
+ * nanoseconds, in the log-linear layout of HdrHistogram: every power of two
+ * is split into the same number of linear sub-buckets, so any recorded
+ * value is reported within 1% of its true value from one nanosecond up to
+ * {@code Long.MAX_VALUE}, and recording is a few shifts and one increment.
+ * <p>
+ * Histograms are not thread-safe. Give each recording thread its own and
+ * {@link #add} them together when reporting.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class LatencyHistogram {
+    // Sub-buckets per power of two are 2^(SUB_BITS - 1); 128 gives < 1% error.
+    private static final int SUB_BITS = 8;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+
+    private final long[] counts = new long[SUB_COUNT + (64 - SUB_BITS) * HALF_COUNT];
+    private long total;
+    private long max;
+    private double sum;
+
+    /**
+     * Records one value. Negative values are recorded as zero.
+     *
+     * @param value The value.
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts[indexOf(value)]++;
+        total++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds another histogram's counts to this one.
+     *
+     * @param other The histogram to add.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Clears every count.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    /**
+     * Gets the value at a percentile: the highest value that falls in the
+     * same bucket as the recorded value at that rank.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The value, or 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestInBucket(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return The count.
+     */
+    public long count() {
+        return total;
+    }
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return The maximum, exactly.
+     */
+    public long max() {
+        return max;
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     *
+     * @return The mean, or 0 if nothing was recorded.
+     */
+    public double mean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        // Keep the top SUB_BITS - 1 bits below the highest one.
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+    }
+
+    private static long highestInBucket(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long top = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+}
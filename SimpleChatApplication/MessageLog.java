@@ -0,0 +1,432 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An append-only log of the frames broadcast in each room, so clients that
+ * join late can be sent recent history.
+ * <p>
+ * Each room has its own directory of segment files named after the offset
+ * of their first message. Frames are stored back to back exactly as they
+ * went over the wire, so replaying a run of messages is a single
+ * {@link FileChannel#transferTo} from the segment into the client's socket,
+ * with no copy through the JVM heap. Appends and replay lookups run on one
+ * background thread, keeping file I/O off the broadcast path; because they
+ * share that thread, a replay sees exactly the messages appended before it
+ * was requested.
+ * <p>
+ * Clients using {@link BinaryProtocol} framing cannot take the text lines
+ * as they are, so their replays are converted from read-only mappings of
+ * the same regions instead.
+ * <p>
+ * Offsets count messages per room from zero. When a room's log is first
+ * opened, its existing segments are memory-mapped and scanned for line
+ * ends to rebuild the offset index, and a torn last line is cut off.
+ * <p>
+ * Only the segments holding a room's last few messages, as many as a
+ * replay sends, are kept open. Older ones are closed once no replay is
+ * still writing from them, and stay on disk as the room's history.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class MessageLog {
+    private final Path directory;
+    private final int segmentBytes;
+    // The most messages a replay sends, which decides the segments kept open.
+    private final int replayCount;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "chat-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Open room logs by name; only touched on the writer thread.
+    private final Map<String, RoomLog> logs = new HashMap<>();
+
+    /**
+     * Opens a log rooted at the given directory, creating it if needed.
+     *
+     * @param directory    The directory holding one subdirectory per room.
+     * @param segmentBytes The size at which a segment is closed and a new one started.
+     * @param replayCount  The most messages a replay will ask for.
+     * @throws IOException If the directory cannot be created.
+     */
+    public MessageLog(Path directory, int segmentBytes, int replayCount) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.replayCount = replayCount;
+    }
+
+    /**
+     * Appends a frame to a room's log in the background.
+     *
+     * @param room  The room name; must be safe to use as a file name.
+     * @param frame The frame; the log takes its own reference until written.
+     */
+    public void append(String room, Frame frame) {
+        frame.retain();
+        try {
+            writer.execute(() -> {
+                try {
+                    roomLog(room).append(frame);
+                } catch (IOException e) {
+                    System.err.println("Message log error in " + room + ": " + e.getMessage());
+                } finally {
+                    frame.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Creates a file region that replays the last messages of a room to
+     * one client. The region can be queued straight away; it becomes ready,
+     * and the outbox resumes, once the background thread has looked up the
+     * messages appended before this call.
+     *
+     * @param room   The room name.
+     * @param count  The most messages to replay; at most the replay count
+     *               the log was opened with.
+     * @param outbox The outbox the region will be queued on.
+     * @return The replay region.
+     */
+    public FileRegion replay(String room, int count, Outbox outbox) {
+        Replay replay = new Replay(outbox);
+        try {
+            writer.execute(() -> {
+                List<Region> regions = List.of();
+                try {
+                    RoomLog log = roomLog(room);
+                    regions = log.regionsFrom(log.nextOffset - Math.min(count, replayCount));
+                } catch (IOException e) {
+                    System.err.println("Message log error in " + room + ": " + e.getMessage());
+                } finally {
+                    replay.ready(regions);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            replay.ready(List.of());
+        }
+        return replay;
+    }
+
+    /**
+     * Finishes pending appends, syncs the segments to disk and closes them.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void close() throws InterruptedException {
+        writer.execute(() -> {
+            for (RoomLog log : logs.values()) {
+                log.close();
+            }
+            logs.clear();
+        });
+        writer.shutdown();
+        writer.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private RoomLog roomLog(String room) throws IOException {
+        RoomLog log = logs.get(room);
+        if (log == null) {
+            log = new RoomLog(directory.resolve(room));
+            logs.put(room, log);
+        }
+        return log;
+    }
+
+    /**
+     * The segments of one room.
+     */
+    private class RoomLog {
+        private final Path directory;
+        // The open segments, oldest first; the last one is appended to.
+        private final List<Segment> segments = new ArrayList<>();
+        private long nextOffset;
+
+        RoomLog(Path directory) throws IOException {
+            this.directory = Files.createDirectories(directory);
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "*.log")) {
+                stream.forEach(files::add);
+            }
+            files.sort(null);
+            for (Path file : files) {
+                long base = Long.parseLong(file.getFileName().toString().replace(".log", ""));
+                Segment segment = Segment.recover(file, base);
+                segments.add(segment);
+                nextOffset = base + segment.count;
+                retire();
+            }
+        }
+
+        void append(Frame frame) throws IOException {
+            Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (active == null || (active.count > 0 && active.size + frame.length() > segmentBytes)) {
+                if (active != null) {
+                    active.channel.force(false);
+                }
+                Path file = directory.resolve(String.format("%020d.log", nextOffset));
+                active = new Segment(FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE), nextOffset);
+                segments.add(active);
+            }
+            active.append(frame);
+            nextOffset++;
+            retire();
+        }
+
+        /**
+         * Closes the oldest segments while the ones after them still hold
+         * every message a replay can ask for.
+         */
+        void retire() {
+            while (segments.size() > 1 && segments.get(1).base <= nextOffset - replayCount) {
+                segments.remove(0).release();
+            }
+        }
+
+        /**
+         * Finds the file regions holding every message from an offset to the
+         * end of the log.
+         */
+        List<Region> regionsFrom(long offset) {
+            List<Region> regions = new ArrayList<>();
+            for (Segment segment : segments) {
+                long end = segment.base + segment.count;
+                if (end <= offset || segment.count == 0) {
+                    continue;
+                }
+                int first = (int) Math.max(0, offset - segment.base);
+                segment.retain();
+                regions.add(new Region(segment, segment.positions[first], segment.size));
+            }
+            return regions;
+        }
+
+        void close() {
+            for (Segment segment : segments) {
+                try {
+                    segment.channel.force(false);
+                } catch (IOException e) {
+                    // Ignore
+                }
+                segment.release();
+            }
+            segments.clear();
+        }
+    }
+
+    /**
+     * One segment file and the start position of each message in it. The
+     * file stays open while the room's log or any replay holds a reference.
+     */
+    private static class Segment {
+        private final FileChannel channel;
+        private final long base;
+        // One for the room's log, plus one for each replay writing from it.
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private int[] positions = new int[64];
+        private int count;
+        private int size;
+
+        Segment(FileChannel channel, long base) {
+            this.channel = channel;
+            this.base = base;
+        }
+
+        /**
+         * Opens an existing segment, indexing it through a read-only mapping
+         * and truncating anything after the last complete line.
+         */
+        static Segment recover(Path file, long base) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(channel, base);
+            int length = (int) channel.size();
+            if (length > 0) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                int start = 0;
+                for (int i = 0; i < length; i++) {
+                    if (map.get(i) == '\n') {
+                        segment.index(start);
+                        start = i + 1;
+                    }
+                }
+                segment.size = start;
+                if (start < length) {
+                    channel.truncate(start);
+                }
+            }
+            return segment;
+        }
+
+        void append(Frame frame) throws IOException {
+            ByteBuffer bytes = frame.view();
+            long position = size;
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
+            }
+            index(size);
+            size = (int) position;
+        }
+
+        void retain() {
+            refs.incrementAndGet();
+        }
+
+        /**
+         * Drops a reference, closing the file after the last one.
+         */
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        private void index(int position) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            positions[count++] = position;
+        }
+    }
+
+    /**
+     * A byte range of a segment.
+     */
+    private static class Region {
+        private final Segment segment;
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        Region(Segment segment, long start, long end) {
+            this.segment = segment;
+            this.channel = segment.channel;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Writes a run of logged messages to one client with
+     * {@code transferTo}. It is queued before the regions are known and
+     * resumes its outbox once they are. It holds a reference to each
+     * segment it writes from until it is released.
+     */
+    private static class Replay extends FileRegion {
+        private final Outbox outbox;
+        private volatile boolean ready;
+        private List<Region> regions = List.of();
+        private boolean released;
+        private int index;
+        private long transferred;
+        // The replay converted to binary frames, for binary clients.
+        private ByteBuffer converted;
+
+        Replay(Outbox outbox) {
+            this.outbox = outbox;
+        }
+
+        void ready(List<Region> regions) {
+            synchronized (this) {
+                if (released) {
+                    // Dropped before the lookup finished.
+                    regions.forEach(region -> region.segment.release());
+                    return;
+                }
+                this.regions = regions;
+            }
+            ready = true;
+            outbox.resume();
+        }
+
+        @Override
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                regions.forEach(region -> region.segment.release());
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public boolean transferTo(WritableByteChannel channel) throws IOException {
+            if (outbox.isBinary()) {
+                if (converted == null) {
+                    converted = convert();
+                }
+                Metrics.SERVER.written(0, channel.write(converted));
+                return !converted.hasRemaining();
+            }
+            while (index < regions.size()) {
+                Region region = regions.get(index);
+                long remaining = region.end - region.start - transferred;
+                long n = remaining > 0 ? region.channel.transferTo(region.start + transferred, remaining, channel) : 0;
+                Metrics.SERVER.written(0, n);
+                transferred += n;
+                if (transferred == region.end - region.start) {
+                    index++;
+                    transferred = 0;
+                } else if (n == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Maps each region and rewrites its lines as binary frames. A frame
+         * is at most four bytes longer than its line, which bounds the size.
+         */
+        private ByteBuffer convert() throws IOException {
+            List<MappedByteBuffer> maps = new ArrayList<>();
+            long size = 0;
+            for (Region region : regions) {
+                MappedByteBuffer map = region.channel.map(FileChannel.MapMode.READ_ONLY,
+                        region.start, region.end - region.start);
+                for (int i = 0; i < map.limit(); i++) {
+                    size += map.get(i) == '\n' ? BinaryProtocol.HEADER_BYTES : 1;
+                }
+                maps.add(map);
+            }
+            ByteBuffer out = ByteBuffer.allocate((int) size);
+            for (MappedByteBuffer map : maps) {
+                int start = 0;
+                for (int i = 0; i < map.limit(); i++) {
+                    if (map.get(i) == '\n') {
+                        BinaryProtocol.fromText(map, start, i + 1, out);
+                        start = i + 1;
+                    }
+                }
+            }
+            return out.flip();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters and histograms, read by the {@link AdminServer}.
+ * <p>
+ * Everything recorded on the message path is a {@link LongAdder}, which
+ * keeps per-thread cells instead of one contended word, or a striped
+ * histogram that threads mostly record into without meeting. Reading
+ * sums the cells, so reports are cheap to make but only approximately
+ * consistent with each other.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class Metrics {
+    /** The metrics of the server running in this JVM. */
+    public static final Metrics SERVER = new Metrics();
+
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder throttledLines = new LongAdder();
+    private final LongAdder throttledClients = new LongAdder();
+    private final LongAdder relayedOut = new LongAdder();
+    private final LongAdder relayedIn = new LongAdder();
+    private final LongAdder relayDiscarded = new LongAdder();
+    private final Set<ChatSession> sessions = ConcurrentHashMap.newKeySet();
+    private final Histogram fanOut = new Histogram();
+    private final Histogram acceptLatency = new Histogram();
+    // Per-second rates, updated by sample().
+    private long lastSample = System.nanoTime();
+    private long lastIn;
+    private long lastOut;
+    private long lastBytes;
+    private volatile double inRate;
+    private volatile double outRate;
+    private volatile double bytesRate;
+
+    /**
+     * Records a newly connected client.
+     *
+     * @param session The client's session.
+     */
+    public void connected(ChatSession session) {
+        connections.increment();
+        sessions.add(session);
+    }
+
+    /**
+     * Records a client going away.
+     *
+     * @param session The client's session.
+     */
+    public void disconnected(ChatSession session) {
+        sessions.remove(session);
+    }
+
+    /**
+     * Counts one line received from a client.
+     */
+    public void messageIn() {
+        messagesIn.increment();
+    }
+
+    /**
+     * Counts frames and bytes written to a client.
+     *
+     * @param frames The number of frames completed.
+     * @param bytes  The number of bytes written.
+     */
+    public void written(int frames, long bytes) {
+        if (frames > 0) {
+            messagesOut.add(frames);
+        }
+        if (bytes > 0) {
+            bytesWritten.add(bytes);
+        }
+    }
+
+    /**
+     * Counts a line dropped by a client's rate limits.
+     *
+     * @param newlyThrottled True if the client was under its limits until
+     *                       this line.
+     */
+    public void throttled(boolean newlyThrottled) {
+        throttledLines.increment();
+        if (newlyThrottled) {
+            throttledClients.increment();
+        }
+    }
+
+    /**
+     * Counts a broadcast relayed to the other nodes of the cluster.
+     */
+    public void relayedOut() {
+        relayedOut.increment();
+    }
+
+    /**
+     * Counts a broadcast relayed from another node and delivered here.
+     */
+    public void relayedIn() {
+        relayedIn.increment();
+    }
+
+    /**
+     * Counts a relayed broadcast discarded as a duplicate or unknown type.
+     */
+    public void relayDiscarded() {
+        relayDiscarded.increment();
+    }
+
+    /**
+     * Records how long it took to offer one broadcast to a room.
+     *
+     * @param nanos The fan-out time.
+     */
+    public void fanOut(long nanos) {
+        fanOut.record(nanos);
+    }
+
+    /**
+     * Records the time from accepting a connection to starting to read it.
+     *
+     * @param nanos The accept latency.
+     */
+    public void accepted(long nanos) {
+        acceptLatency.record(nanos);
+    }
+
+    /**
+     * Updates the per-second rates. Called about once a second.
+     */
+    public synchronized void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSample) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        long bytes = bytesWritten.sum();
+        inRate = (in - lastIn) / seconds;
+        outRate = (out - lastOut) / seconds;
+        bytesRate = (bytes - lastBytes) / seconds;
+        lastSample = now;
+        lastIn = in;
+        lastOut = out;
+        lastBytes = bytes;
+    }
+
+    /**
+     * Writes every metric in plain text, one {@code name value} pair per
+     * line, in the Prometheus exposition format.
+     *
+     * @param out The report to append to.
+     */
+    public void report(StringBuilder out) {
+        line(out, "chat_clients_connected", sessions.size());
+        line(out, "chat_connections_total", connections.sum());
+        line(out, "chat_messages_in_total", messagesIn.sum());
+        line(out, "chat_messages_in_per_second", inRate);
+        line(out, "chat_messages_out_total", messagesOut.sum());
+        line(out, "chat_messages_out_per_second", outRate);
+        line(out, "chat_bytes_written_total", bytesWritten.sum());
+        line(out, "chat_bytes_written_per_second", bytesRate);
+        line(out, "chat_frames_dropped_total", Outbox.totalDroppedFrames());
+        line(out, "chat_clients_evicted_total", Outbox.totalDisconnected());
+        line(out, "chat_lines_throttled_total", throttledLines.sum());
+        line(out, "chat_clients_throttled_total", throttledClients.sum());
+        line(out, "chat_idle_pings_total", IdleReaper.totalPings());
+        line(out, "chat_clients_reaped_total", IdleReaper.totalReaped());
+        line(out, "chat_deflate_bytes_in_total", DeflatingChannel.totalBytesIn());
+        line(out, "chat_deflate_bytes_out_total", DeflatingChannel.totalBytesOut());
+        line(out, "chat_relayed_out_total", relayedOut.sum());
+        line(out, "chat_relayed_in_total", relayedIn.sum());
+        line(out, "chat_relay_discarded_total", relayDiscarded.sum());
+        histogram(out, "chat_fanout_micros", fanOut.snapshot());
+        histogram(out, "chat_accept_latency_micros", acceptLatency.snapshot());
+        for (ChatSession session : sessions) {
+            String client = session.getUsername();
+            if (client == null) {
+                continue;
+            }
+            String label = "{client=\"" + client.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"}";
+            line(out, "chat_client_queue_depth" + label, session.getOutbox().depth());
+            line(out, "chat_client_queued_bytes" + label, session.getOutbox().queuedBytes());
+            line(out, "chat_client_dropped_frames" + label, session.getOutbox().droppedFrames());
+            line(out, "chat_client_throttled_lines" + label, session.getThrottledLines());
+        }
+    }
+
+    private static void histogram(StringBuilder out, String name, LatencyHistogram histogram) {
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            line(out, name + "{quantile=\"" + quantile + "\"}", histogram.percentile(quantile * 100) / 1000.0);
+        }
+        line(out, name + "_max", histogram.max() / 1000.0);
+        line(out, name + "_count", histogram.count());
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder out, String name, double value) {
+        out.append(name).append(' ').append(String.format(Locale.ROOT, "%.3f", value)).append('\n');
+    }
+
+    /**
+     * A histogram split into stripes by thread, each with its own lock, so
+     * threads recording at once rarely wait for each other.
+     */
+    private static class Histogram {
+        private final LatencyHistogram[] stripes;
+
+        Histogram() {
+            int size = 1;
+            while (size < Runtime.getRuntime().availableProcessors() * 2) {
+                size <<= 1;
+            }
+            stripes = new LatencyHistogram[size];
+            for (int i = 0; i < size; i++) {
+                stripes[i] = new LatencyHistogram();
+            }
+        }
+
+        void record(long value) {
+            LatencyHistogram stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+            synchronized (stripe) {
+                stripe.record(value);
+            }
+        }
+
+        LatencyHistogram snapshot() {
+            LatencyHistogram total = new LatencyHistogram();
+            for (LatencyHistogram stripe : stripes) {
+                synchronized (stripe) {
+                    total.add(stripe);
+                }
+            }
+            return total;
+        }
+    }
+}
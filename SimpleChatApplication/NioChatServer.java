@@ -0,0 +1,606 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking chat server that multiplexes every client over a small,
+ * fixed pool of selector threads instead of one thread per connection.
+ * It speaks the same protocol as the threaded server, text or binary, so
+ * {@link ChatClient} works against either.
+ * <p>
+ * Like the threaded server, it pings and reaps quiet clients with an
+ * {@link IdleReaper}, and on {@link #shutdown()} each loop stops reading,
+ * drains its clients' outboxes until the shutdown timeout and then exits.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class NioChatServer {
+    private static final Charset CHARSET = ChatServer.CHARSET;
+    // Longest line a client may send before it is disconnected.
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    // How a connection frames its input; it is undecided until the first byte.
+    private static final int UNDECIDED = 0;
+    private static final int TEXT = 1;
+    private static final int BINARY = 2;
+
+    private final ServerConfig config;
+    private final EventLoop[] loops;
+    // Rooms and the outboxes subscribed to them.
+    private final RoomRegistry rooms;
+    private final UsernameRegistry usernames = new UsernameRegistry();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    // Null when neither heartbeats nor idle timeouts are on.
+    private final IdleReaper reaper;
+    // Null until run() opens it; volatile for a shutdown on another thread.
+    private volatile ServerSocketChannel server;
+    // When a shutdown closes the connections that have not drained.
+    private volatile long shutdownDeadline;
+
+    /**
+     * Creates a server with one event loop per configured thread.
+     *
+     * @param config The server configuration.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public NioChatServer(ServerConfig config) throws IOException {
+        this.config = config;
+        this.rooms = new RoomRegistry(config);
+        this.reaper = config.getHeartbeatNanos() > 0 || config.getIdleTimeoutNanos() > 0
+                ? new IdleReaper(config)
+                : null;
+        this.loops = new EventLoop[config.getEventLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Binds the listening socket and runs the event loops until they stop.
+     *
+     * @throws IOException          If the port cannot be bound.
+     * @throws InterruptedException If interrupted while waiting for the loops.
+     */
+    public void run() throws IOException, InterruptedException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(config.getPort()));
+        server.configureBlocking(false);
+
+        EventLoop acceptLoop = loops[0];
+        acceptLoop.execute(() -> acceptLoop.register(server, SelectionKey.OP_ACCEPT, null));
+
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.join();
+        }
+    }
+
+    /**
+     * Stops the server gracefully and waits for it: closes the listening
+     * socket, has every loop tell its clients, stop reading and drain their
+     * outboxes, closes what has not drained by the shutdown timeout and
+     * flushes the message log. Meant to run as a shutdown hook.
+     */
+    public void shutdown() {
+        shutdownDeadline = System.nanoTime() + config.getShutdownTimeoutNanos();
+        System.out.println("Shutting down.");
+        ServerSocketChannel listening = server;
+        if (listening != null) {
+            try {
+                listening.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        for (EventLoop loop : loops) {
+            loop.execute(loop::stop);
+        }
+        try {
+            for (EventLoop loop : loops) {
+                // The loops give up on their clients at the deadline; allow a
+                // little longer for them to notice.
+                long wait = shutdownDeadline - System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+                TimeUnit.NANOSECONDS.timedJoin(loop.thread, Math.max(wait, 1));
+            }
+            if (reaper != null) {
+                reaper.stop();
+            }
+            rooms.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Accepts every pending connection and hands each one to an event loop
+     * in round-robin order.
+     *
+     * @param server The listening channel.
+     */
+    private void accept(ServerSocketChannel server) {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                loop.execute(new Connection(channel, loop)::register);
+            }
+        } catch (IOException e) {
+            System.err.println("Accept error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A selector thread. All reads, writes and selection-key changes for the
+     * channels it owns happen on this thread; other threads hand it work
+     * through {@link #execute(Runnable)}.
+     */
+    private class EventLoop implements Runnable, Outbox.DrainScheduler {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Delayed tasks by deadline; only touched on the loop thread.
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+        private long timerSequence;
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        // The loop's open connections and shutdown state; only touched on the loop thread.
+        private final Set<Connection> connections = new HashSet<>();
+        private boolean stopping;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "chat-loop-" + index);
+        }
+
+        /**
+         * Queues a task to run on this loop's thread and wakes the selector
+         * if the caller is another thread.
+         *
+         * @param task The task to run.
+         */
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Runs a task on this loop's thread after a delay.
+         *
+         * @param task       The task to run.
+         * @param delayNanos The delay in nanoseconds.
+         */
+        @Override
+        public void schedule(Runnable task, long delayNanos) {
+            long deadline = System.nanoTime() + delayNanos;
+            execute(() -> timers.add(new Timer(deadline, timerSequence++, task)));
+        }
+
+        /**
+         * Registers a channel with this loop's selector. Must run on the loop.
+         *
+         * @return The selection key, or null if the channel was already closed.
+         */
+        SelectionKey register(SelectableChannel channel, int ops, Object attachment) {
+            try {
+                return channel.register(selector, ops, attachment);
+            } catch (ClosedChannelException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Starts this loop's part of a shutdown. Runs on the loop; the loop
+         * exits once its last connection is closed.
+         */
+        void stop() {
+            stopping = true;
+            for (Connection connection : new ArrayList<>(connections)) {
+                connection.drainAndClose();
+            }
+            schedule(() -> {
+                for (Connection connection : new ArrayList<>(connections)) {
+                    connection.close();
+                }
+            }, Math.max(shutdownDeadline - System.nanoTime(), 0));
+        }
+
+        @Override
+        public void run() {
+            while (!(stopping && connections.isEmpty())) {
+                try {
+                    // Tasks queued by this thread itself must not wait for I/O.
+                    Timer next = timers.peek();
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (next == null) {
+                        selector.select();
+                    } else {
+                        long waitNanos = next.deadline - System.nanoTime();
+                        if (waitNanos < 1_000_000) {
+                            selector.selectNow();
+                        } else {
+                            selector.select(waitNanos / 1_000_000);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Selector error: " + e.getMessage());
+                    return;
+                }
+                wakeupPending.set(false);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+                    timers.poll().task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isWritable()) {
+                        connection.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * A task waiting in an event loop's timer queue. Ties on the deadline
+     * keep scheduling order.
+     */
+    private static class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final long sequence;
+        private final Runnable task;
+
+        Timer(long deadline, long sequence, Runnable task) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            int byDeadline = Long.compare(deadline - other.deadline, 0);
+            return byDeadline != 0 ? byDeadline : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * The state of a single client: its line decoder feeding a
+     * {@link ChatSession} on the read side and its outbox of pending frames
+     * on the write side.
+     */
+    private class Connection implements IdleReaper.Watched {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        private final Outbox outbox;
+        private final ChatSession session;
+        // When the connection was accepted, for the accept latency metric.
+        private final long acceptedAt = System.nanoTime();
+        private SelectionKey key;
+        // The line, handshake or binary frame being assembled.
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private int framing = UNDECIDED;
+        // Set by the handshake if the client asked for compression.
+        private DeflatingChannel deflating;
+        // When the client last sent anything, on the reaper's clock.
+        private volatile long lastActive;
+        // Set in a shutdown: nothing more is read, and the connection
+        // closes once its outbox is drained.
+        private boolean draining;
+        // Volatile because the reaper checks it.
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.outbox = new Outbox(config, loop, this::flush, () -> loop.execute(this::evict));
+            this.session = new ChatSession(rooms, usernames, outbox, config);
+        }
+
+        /**
+         * Registers the channel for reads. Runs on the owning loop.
+         */
+        void register() {
+            Metrics.SERVER.accepted(System.nanoTime() - acceptedAt);
+            if (loop.stopping) {
+                close();
+                return;
+            }
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+            if (key == null) {
+                close();
+                return;
+            }
+            loop.connections.add(this);
+            if (reaper != null) {
+                lastActive = reaper.now();
+                reaper.watch(this);
+            }
+        }
+
+        /**
+         * Reads whatever is available and handles each complete line.
+         */
+        void read() {
+            try {
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                if (reaper != null) {
+                    lastActive = reaper.now();
+                }
+                readBuffer.flip();
+                while (readBuffer.hasRemaining() && !closed) {
+                    if (framing == TEXT) {
+                        readText();
+                    } else if (framing == BINARY) {
+                        readFrame();
+                    } else {
+                        readHello();
+                    }
+                }
+                readBuffer.clear();
+            } catch (IOException e) {
+                System.out.println("Error with client " + username() + ": " + e);
+                close();
+            }
+        }
+
+        /**
+         * Decides the framing from the first byte, and collects and answers
+         * the handshake of a binary client. Only the last byte differs
+         * between the two handshakes.
+         */
+        private void readHello() throws IOException {
+            if (lineLength == 0 && readBuffer.get(readBuffer.position()) != BinaryProtocol.HELLO[0]) {
+                framing = TEXT;
+                return;
+            }
+            byte b = readBuffer.get();
+            boolean last = lineLength == BinaryProtocol.HELLO.length - 1;
+            if (b != BinaryProtocol.HELLO[lineLength]
+                    && !(last && b == BinaryProtocol.HELLO_DEFLATE[lineLength])) {
+                throw new IOException("Unsupported handshake");
+            }
+            if (last) {
+                lineLength = 0;
+                if (b == BinaryProtocol.HELLO_DEFLATE[BinaryProtocol.HELLO.length - 1]
+                        && config.getCompressionLevel() > 0) {
+                    // The answer goes out uncompressed ahead of the stream.
+                    deflating = new DeflatingChannel(channel, config.getCompressionLevel(),
+                            BinaryProtocol.HELLO_DEFLATE);
+                    if (!deflating.flushPending()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                } else {
+                    outbox.offer(Frame.wrap(BinaryProtocol.HELLO));
+                }
+                outbox.useBinaryFraming();
+                framing = BINARY;
+            } else {
+                lineLength++;
+            }
+        }
+
+        /**
+         * Consumes bytes up to the end of a text line, handling the line if
+         * it is complete.
+         */
+        private void readText() {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                int end = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                String text = CHARSET.decode(ByteBuffer.wrap(line, 0, end)).toString();
+                lineLength = 0;
+                if (!session.onLine(text)) {
+                    close();
+                }
+            } else if (lineLength == MAX_LINE_BYTES) {
+                System.out.println("Line too long from " + username());
+                close();
+            } else {
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_BYTES));
+                }
+                line[lineLength++] = b;
+            }
+        }
+
+        /**
+         * Copies as much of the current binary frame as is available,
+         * handling the frame if it is complete. The header says how much to
+         * copy, so the bytes are never scanned.
+         */
+        private void readFrame() throws IOException {
+            if (lineLength < BinaryProtocol.HEADER_BYTES) {
+                take(BinaryProtocol.HEADER_BYTES);
+                if (lineLength < BinaryProtocol.HEADER_BYTES) {
+                    return;
+                }
+            }
+            int length = (line[0] & 0xff) << 24 | (line[1] & 0xff) << 16 | (line[2] & 0xff) << 8 | line[3] & 0xff;
+            if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (line[4] != BinaryProtocol.LINE) {
+                throw new IOException("Unexpected frame type " + line[4]);
+            }
+            int size = BinaryProtocol.HEADER_BYTES + length;
+            if (size > line.length) {
+                line = Arrays.copyOf(line, Math.max(size, line.length * 2));
+            }
+            take(size);
+            if (lineLength == size) {
+                String text = new String(line, BinaryProtocol.HEADER_BYTES, length, CHARSET);
+                lineLength = 0;
+                if (!session.onLine(text)) {
+                    close();
+                }
+            }
+        }
+
+        private void take(int size) {
+            int count = Math.min(size - lineLength, readBuffer.remaining());
+            readBuffer.get(line, lineLength, count);
+            lineLength += count;
+        }
+
+        /**
+         * Writes queued frames until the outbox is empty or the socket's send
+         * buffer is full, in which case the loop waits for OP_WRITE.
+         * Runs on the owning loop.
+         */
+        void flush() {
+            if (closed || key == null) {
+                return;
+            }
+            try {
+                boolean idle = deflating == null ? outbox.drainTo(channel)
+                        : outbox.drainTo(deflating) && deflating.flushPending();
+                if (draining && idle && outbox.depth() == 0) {
+                    close();
+                    return;
+                }
+                int read = draining ? 0 : SelectionKey.OP_READ;
+                key.interestOps(idle ? read : read | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                System.out.println("Error with client " + username() + ": " + e);
+                close();
+            }
+        }
+
+        /**
+         * Closes a client whose outbox overflowed under the disconnect policy.
+         * Runs on the owning loop.
+         */
+        void evict() {
+            System.out.println(username() + " was disconnected for falling behind.");
+            close();
+        }
+
+        /**
+         * Tells the client the server is going down, stops reading from it
+         * and closes it once everything queued has been written. Runs on
+         * the owning loop.
+         */
+        void drainAndClose() {
+            draining = true;
+            session.shuttingDown();
+            flush();
+        }
+
+        @Override
+        public long lastActive() {
+            return lastActive;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        /**
+         * Pings the client on its loop, once it has picked its framing.
+         */
+        @Override
+        public void ping() {
+            loop.execute(() -> {
+                if (framing != UNDECIDED && !closed) {
+                    session.ping();
+                }
+            });
+        }
+
+        /**
+         * Closes a client that stayed quiet too long, on its loop.
+         */
+        @Override
+        public void reap() {
+            loop.execute(() -> {
+                if (!closed) {
+                    System.out.println(username() + " was disconnected for being idle.");
+                    close();
+                }
+            });
+        }
+
+        private String username() {
+            String username = session.getUsername();
+            return username != null ? username : "unknown";
+        }
+
+        /**
+         * Leaves the client's rooms and closes its socket.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            loop.connections.remove(this);
+            session.close();
+            outbox.close();
+            if (deflating != null) {
+                deflating.close();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
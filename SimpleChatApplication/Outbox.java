@@ -0,0 +1,489 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded queue of frames waiting to be written to one client.
+ * Any number of broadcasting threads may {@link #offer(Frame)} frames, or
+ * {@link #offer(FileRegion)} file regions, without taking a lock; a single writer task at a time drains the queue
+ * to the client's socket, so a slow reader only ever delays itself.
+ * <p>
+ * Once the queue reaches its high watermark the client counts as congested
+ * and the {@link OverflowPolicy} decides what gives; it stops counting as
+ * congested when the queue falls back to the low watermark.
+ * <p>
+ * Frames are written in batches with a single gathering write. With a
+ * batch window configured, the first frame to arrive at an idle outbox
+ * opens the window and the drain waits for it to close (or for the byte
+ * budget to fill), trading a little latency for far fewer system calls.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class Outbox {
+
+    /**
+     * Runs drain tasks on whatever thread owns the client's writes.
+     */
+    public interface DrainScheduler {
+        /**
+         * Runs a task as soon as possible.
+         *
+         * @param task The task.
+         */
+        void execute(Runnable task);
+
+        /**
+         * Runs a task after a delay.
+         *
+         * @param task       The task.
+         * @param delayNanos The delay in nanoseconds.
+         */
+        void schedule(Runnable task, long delayNanos);
+    }
+
+    /**
+     * What to do with a client whose outbox is full.
+     */
+    public enum OverflowPolicy {
+        /** Discard queued frames, oldest first, down to the low watermark. */
+        DROP_OLDEST,
+        /** Discard new frames until the queue drains to the low watermark. */
+        DROP_NEWEST,
+        /** Give up on the client and close its connection. */
+        DISCONNECT
+    }
+
+    // Most buffers handed to one gathering write.
+    private static final int MAX_GATHER = 64;
+
+    // Server-wide counters across all outboxes.
+    private static final LongAdder totalDropped = new LongAdder();
+    private static final LongAdder totalDisconnected = new LongAdder();
+
+    private final Queue<Outgoing> queue = new ConcurrentLinkedQueue<>();
+    // Frames queued or partly written; kept separately because queue size is O(n).
+    private final AtomicInteger depth = new AtomicInteger();
+    // True while a drain is scheduled or running.
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // True while a batch window is open and its drain has not started yet.
+    private final AtomicBoolean windowOpen = new AtomicBoolean();
+    // Bytes queued or partly written.
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final OverflowPolicy policy;
+    private final long batchWindowNanos;
+    private final int batchBytes;
+    private final DrainScheduler scheduler;
+    private final Runnable drain;
+    private final Runnable windowClosed = this::closeWindow;
+    private final Runnable onDisconnect;
+    private final AtomicLong dropped = new AtomicLong();
+    // Set on reaching the high watermark, cleared at the low watermark.
+    private volatile boolean congested;
+    // The batch being written: frames and this client's views of them,
+    // with the index of the first one not yet fully written. Only touched
+    // by the draining thread.
+    private final Frame[] batch = new Frame[MAX_GATHER];
+    private final ByteBuffer[] views = new ByteBuffer[MAX_GATHER];
+    private int batchStart;
+    private int batchEnd;
+    // A file region taken from the queue, written on its own once the batch
+    // before it is done.
+    private FileRegion held;
+    // True while the drain is stopped at a region that is not ready.
+    private final AtomicBoolean parked = new AtomicBoolean();
+    private volatile boolean closed;
+    // Set once the client negotiates binary framing, before it joins any room.
+    private volatile boolean binary;
+
+    /**
+     * Creates an outbox with the watermarks and policy from the configuration.
+     *
+     * @param config       The server configuration.
+     * @param scheduler    Runs the drain task on the thread that owns writes.
+     * @param drain        The drain task; it must call {@link #drainTo}.
+     * @param onDisconnect Called once if the {@code DISCONNECT} policy gives
+     *                     up on the client; it must close the connection.
+     */
+    public Outbox(ServerConfig config, DrainScheduler scheduler, Runnable drain, Runnable onDisconnect) {
+        this.highWatermark = config.getHighWatermark();
+        this.lowWatermark = config.getLowWatermark();
+        this.policy = config.getOverflowPolicy();
+        this.batchWindowNanos = config.getBatchWindowNanos();
+        this.batchBytes = config.getBatchBytes();
+        this.scheduler = scheduler;
+        this.drain = drain;
+        this.onDisconnect = onDisconnect;
+    }
+
+    /**
+     * Queues a frame for this client. Never blocks.
+     *
+     * @param frame The frame to send. The outbox takes over one reference,
+     *              which it releases once the frame is written or dropped.
+     *              A client using binary framing is sent its binary form.
+     * @return False if the outbox is closed or the frame was dropped.
+     */
+    public boolean offer(Frame frame) {
+        if (closed) {
+            frame.release();
+            return false;
+        }
+        if (binary) {
+            Frame encoded = frame.binary().retain();
+            frame.release();
+            frame = encoded;
+        }
+        return enqueue(frame);
+    }
+
+    /**
+     * Queues a file region for this client. Never blocks.
+     *
+     * @param region The region to send; the outbox releases it once it is
+     *               written or dropped.
+     * @return False if the outbox is closed or the region was dropped.
+     */
+    public boolean offer(FileRegion region) {
+        return enqueue(region);
+    }
+
+    private boolean enqueue(Outgoing frame) {
+        if (closed) {
+            frame.release();
+            return false;
+        }
+        if (congested && depth.get() > lowWatermark && policy == OverflowPolicy.DROP_NEWEST) {
+            frame.release();
+            drop(1);
+            return false;
+        }
+        int queued = depth.incrementAndGet();
+        if (queued > highWatermark) {
+            congested = true;
+            switch (policy) {
+                case DROP_NEWEST:
+                    depth.decrementAndGet();
+                    frame.release();
+                    drop(1);
+                    return false;
+                case DROP_OLDEST:
+                    dropOldest();
+                    break;
+                default:
+                    depth.decrementAndGet();
+                    frame.release();
+                    disconnect();
+                    return false;
+            }
+        } else if (congested && queued <= lowWatermark) {
+            congested = false;
+        }
+        long bytes = queuedBytes.addAndGet(frame.length());
+        queue.add(frame);
+        if (closed) {
+            // close() may have emptied the queue before the frame went in.
+            discardQueued();
+            return false;
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            if (batchWindowNanos == 0) {
+                scheduler.execute(drain);
+            } else {
+                windowOpen.set(true);
+                scheduler.schedule(windowClosed, batchWindowNanos);
+            }
+        } else if (bytes >= batchBytes && windowOpen.compareAndSet(true, false)) {
+            // The byte budget filled before the window closed.
+            scheduler.execute(drain);
+        }
+        return true;
+    }
+
+    private void closeWindow() {
+        if (windowOpen.compareAndSet(true, false)) {
+            drain.run();
+        }
+    }
+
+    /**
+     * Discards queued frames from the head until the queue is back at the low
+     * watermark. The frame being written is never discarded, so the client
+     * does not see half a line.
+     */
+    private void dropOldest() {
+        int discarded = 0;
+        Outgoing oldest;
+        while (depth.get() > lowWatermark + 1 && (oldest = queue.poll()) != null) {
+            queuedBytes.addAndGet(-oldest.length());
+            oldest.release();
+            depth.decrementAndGet();
+            discarded++;
+        }
+        drop(discarded);
+    }
+
+    private void drop(int frames) {
+        dropped.addAndGet(frames);
+        totalDropped.add(frames);
+    }
+
+    private void disconnect() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            close();
+        }
+        totalDisconnected.increment();
+        onDisconnect.run();
+    }
+
+    /**
+     * Writes queued frames to the channel, up to {@code MAX_GATHER} frames or
+     * the byte budget per gathering write. File regions are written on
+     * their own with {@link FileRegion#transferTo}. Only one thread may drain
+     * at a time, which the scheduling flag guarantees as long as drains are
+     * only started through the drain scheduler.
+     *
+     * @param channel The client's channel, blocking or not.
+     * @return True if there is nothing more to write for now: the outbox is
+     *         idle, or it is waiting for a region to become ready and will
+     *         reschedule itself. False if a non-blocking channel stopped
+     *         accepting bytes and the drain must be resumed once it is
+     *         writable again.
+     * @throws IOException If the write fails.
+     */
+    public boolean drainTo(GatheringByteChannel channel) throws IOException {
+        while (true) {
+            while (!closed) {
+                if (batchStart == batchEnd && held != null) {
+                    if (!held.isReady()) {
+                        if (park()) {
+                            return true;
+                        }
+                        continue;
+                    }
+                    if (!held.transferTo(channel)) {
+                        return false;
+                    }
+                    Metrics.SERVER.written(1, 0);
+                    depth.decrementAndGet();
+                    held.release();
+                    held = null;
+                    continue;
+                }
+                if (batchStart == batchEnd && !fillBatch()) {
+                    if (held != null) {
+                        continue;
+                    }
+                    break;
+                }
+                long written = channel.write(views, batchStart, batchEnd - batchStart);
+                int completed = batchStart;
+                while (batchStart < batchEnd && !views[batchStart].hasRemaining()) {
+                    complete(batchStart++);
+                }
+                Metrics.SERVER.written(batchStart - completed, written);
+                if (batchStart < batchEnd) {
+                    return false;
+                }
+                batchStart = 0;
+                batchEnd = 0;
+            }
+            while (batchStart < batchEnd) {
+                complete(batchStart++);
+            }
+            batchStart = 0;
+            batchEnd = 0;
+            if (held != null) {
+                held.release();
+                held = null;
+            }
+            scheduled.set(false);
+            // A frame may have been offered after the queue looked empty.
+            if (closed || queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Stops draining at a held region that is not ready. The outbox stays
+     * scheduled, so new frames queue up behind it, and {@link #resume()}
+     * restarts the drain.
+     *
+     * @return True if the drain should stop; false if the frame became
+     *         ready in the meantime and the drain can carry on.
+     */
+    private boolean park() {
+        parked.set(true);
+        return !(held.isReady() && parked.compareAndSet(true, false));
+    }
+
+    /**
+     * Restarts a drain that stopped at a region which has now become ready.
+     * Called by the region itself.
+     */
+    public void resume() {
+        if (parked.compareAndSet(true, false)) {
+            scheduler.execute(drain);
+        }
+    }
+
+    /**
+     * Moves frames into the empty batch, stopping at a file region, which
+     * is held back.
+     *
+     * @return True if the batch has at least one frame.
+     */
+    private boolean fillBatch() {
+        long bytes = 0;
+        while (batchEnd < MAX_GATHER && bytes < batchBytes) {
+            Outgoing next = queue.poll();
+            if (next == null) {
+                break;
+            }
+            if (next instanceof FileRegion) {
+                held = (FileRegion) next;
+                break;
+            }
+            Frame frame = (Frame) next;
+            batch[batchEnd] = frame;
+            views[batchEnd] = frame.view();
+            bytes += frame.length();
+            batchEnd++;
+        }
+        return batchEnd > 0;
+    }
+
+    private void complete(int index) {
+        Frame frame = batch[index];
+        depth.decrementAndGet();
+        queuedBytes.addAndGet(-frame.length());
+        frame.release();
+        batch[index] = null;
+        views[index] = null;
+    }
+
+    /**
+     * Discards anything still queued and rejects future frames. A batch that
+     * is partly written is released by the drainer if one is running, and
+     * otherwise left to the garbage collector.
+     */
+    public synchronized void close() {
+        closed = true;
+        discardQueued();
+    }
+
+    /**
+     * Releases every queued frame. Safe to run from several threads at
+     * once, since each frame is polled by only one of them.
+     */
+    private void discardQueued() {
+        Outgoing frame;
+        while ((frame = queue.poll()) != null) {
+            queuedBytes.addAndGet(-frame.length());
+            frame.release();
+        }
+    }
+
+    /**
+     * Waits for everything queued to be written, for closing a connection
+     * without losing what it was still owed. Polls, which is fine for the
+     * once-per-connection use at shutdown.
+     *
+     * @param deadline The {@link System#nanoTime()} at which to give up.
+     * @return True if the outbox emptied in time.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean awaitEmpty(long deadline) throws InterruptedException {
+        while (depth.get() > 0 && !closed) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return depth.get() == 0;
+    }
+
+    /**
+     * Switches the client to binary framing. Frames offered from now on are
+     * sent in their binary form.
+     */
+    public void useBinaryFraming() {
+        binary = true;
+    }
+
+    /**
+     * Tells whether the client uses binary framing.
+     *
+     * @return True once {@link #useBinaryFraming()} has been called.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Gets the number of frames waiting, including one partly written.
+     *
+     * @return The queue depth.
+     */
+    public int depth() {
+        return depth.get();
+    }
+
+    /**
+     * Gets the number of bytes waiting, including a partly written batch.
+     *
+     * @return The queued byte count.
+     */
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Gets the number of frames this outbox has discarded.
+     *
+     * @return The dropped frame count.
+     */
+    public long droppedFrames() {
+        return dropped.get();
+    }
+
+    /**
+     * Tells whether the outbox has been closed, either by its connection or
+     * by the {@code DISCONNECT} policy.
+     *
+     * @return True if the outbox no longer accepts frames.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Gets the number of frames discarded by every outbox in the server.
+     *
+     * @return The total dropped frame count.
+     */
+    public static long totalDroppedFrames() {
+        return totalDropped.sum();
+    }
+
+    /**
+     * Gets the number of clients disconnected for being too slow.
+     *
+     * @return The total disconnect count.
+     */
+    public static long totalDisconnected() {
+        return totalDisconnected.sum();
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * Something queued on an {@link Outbox} for one client: either a
+ * {@link Frame}, written from a shared buffer in gathering writes, or a
+ * {@link FileRegion}, transferred straight from files on its own.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public interface Outgoing {
+
+    /**
+     * Gets the number of bytes this counts for in the outbox.
+     *
+     * @return The size in bytes, or 0 if it is not known up front.
+     */
+    int length();
+
+    /**
+     * Drops the outbox's reference, once written or discarded.
+     */
+    void release();
+}
@@ -0,0 +1,79 @@
+import java.io.IOException;
+
+/**
+ * Carries broadcasts between the nodes of a chat cluster. Each node hands
+ * its own broadcasts to {@link #send}, and the transport delivers them to
+ * every other node's listener. Delivery is best effort: a transport may
+ * drop messages to a peer that is down or too slow, and may deliver a
+ * message more than once, which {@link Cluster} filters out by message id.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public interface RelayTransport {
+
+    /**
+     * A broadcast on its way between nodes.
+     */
+    final class Message {
+        /** The node the message was first published on. */
+        public final String origin;
+        /** The message id, unique per origin node. */
+        public final long id;
+        /** The room it was published to. */
+        public final String room;
+        /** The {@link BinaryProtocol} frame type. */
+        public final byte type;
+        /** The UTF-8 payload, as in the binary frame. */
+        public final byte[] payload;
+
+        /**
+         * Creates a message.
+         *
+         * @param origin  The origin node id.
+         * @param id      The message id.
+         * @param room    The room name.
+         * @param type    The frame type.
+         * @param payload The payload bytes.
+         */
+        public Message(String origin, long id, String room, byte type, byte[] payload) {
+            this.origin = origin;
+            this.id = id;
+            this.room = room;
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Receives the messages relayed by other nodes.
+     */
+    interface Listener {
+        /**
+         * Called for each message received, on a transport thread.
+         *
+         * @param message The message.
+         */
+        void onMessage(Message message);
+    }
+
+    /**
+     * Starts listening and connecting to peers.
+     *
+     * @param listener Receives messages from other nodes.
+     * @throws IOException If the transport cannot start.
+     */
+    void start(Listener listener) throws IOException;
+
+    /**
+     * Sends a message to every peer without blocking.
+     *
+     * @param message The message.
+     */
+    void send(Message message);
+
+    /**
+     * Stops the transport and closes its connections.
+     */
+    void close();
+}
@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The chat rooms of a server and the outboxes subscribed to each.
+ * Rooms are spread over a fixed number of shards by name, and each shard
+ * has its own lock, so joins and leaves in rooms on different shards never
+ * contend. Publishing only touches the room's own subscribers, so fan-out
+ * cost follows the room's size rather than the number of connections.
+ * <p>
+ * When a {@link MessageLog} is configured, every published frame is also
+ * appended to the room's log and a joining client is first sent the room's
+ * recent history. Each room numbers its messages and remembers the number
+ * at which each subscriber joined, so a message is either in the joiner's
+ * replay or delivered live, never both.
+ * <p>
+ * In a cluster (see {@link Cluster}) every frame published here is also
+ * relayed to the other nodes, and frames relayed from them are delivered
+ * to the local subscribers only.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class RoomRegistry {
+    private final Shard[] shards;
+    private final int mask;
+    private final MessageLog log;
+    private final int replayCount;
+    private final Cluster cluster;
+
+    /**
+     * Creates a registry, and its message log and cluster relay if they
+     * are configured.
+     *
+     * @param config The server configuration.
+     * @throws IOException If the log directory cannot be created or the
+     *                     relay port cannot be bound.
+     */
+    public RoomRegistry(ServerConfig config) throws IOException {
+        int size = 1;
+        while (size < config.getRoomShards()) {
+            size <<= 1;
+        }
+        shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            shards[i] = new Shard();
+        }
+        mask = size - 1;
+        log = config.getLogDir() != null
+                ? new MessageLog(Paths.get(config.getLogDir()), config.getLogSegmentBytes(), config.getReplayCount())
+                : null;
+        replayCount = config.getReplayCount();
+        cluster = config.getRelayPort() != 0 ? new Cluster(config, this) : null;
+    }
+
+    /**
+     * Subscribes an outbox to a room, creating the room if needed, and
+     * queues the room's recent history ahead of any live message.
+     *
+     * @param room   The room name.
+     * @param outbox The subscriber.
+     */
+    public void join(String room, Outbox outbox) {
+        Shard shard = shardFor(room);
+        synchronized (shard) {
+            Room members = shard.rooms.computeIfAbsent(room, name -> new Room());
+            if (members.subscribers.putIfAbsent(outbox, members.published) == null
+                    && log != null && replayCount > 0) {
+                outbox.offer(log.replay(room, replayCount, outbox));
+            }
+        }
+    }
+
+    /**
+     * Unsubscribes an outbox from a room and removes the room once empty.
+     *
+     * @param room   The room name.
+     * @param outbox The subscriber.
+     */
+    public void leave(String room, Outbox outbox) {
+        Shard shard = shardFor(room);
+        synchronized (shard) {
+            Room members = shard.rooms.get(room);
+            if (members != null && members.subscribers.remove(outbox) != null && members.subscribers.isEmpty()) {
+                shard.rooms.remove(room);
+            }
+        }
+    }
+
+    /**
+     * Sends a frame published by a local client to every subscriber of a
+     * room, here and on the other nodes of the cluster.
+     *
+     * @param room  The room name.
+     * @param frame The frame to send; the caller keeps its own reference.
+     * @return The number of local subscribers the frame was offered to.
+     */
+    public int publish(String room, Frame frame) {
+        int recipients = deliver(room, frame);
+        if (cluster != null) {
+            cluster.relay(room, frame);
+        }
+        return recipients;
+    }
+
+    /**
+     * Sends a frame to every local subscriber of a room. The shard lock is
+     * only held to number the message and hand it to the log; the
+     * subscribers are iterated without it.
+     *
+     * @param room  The room name.
+     * @param frame The frame to send; the caller keeps its own reference.
+     * @return The number of subscribers the frame was offered to.
+     */
+    public int deliver(String room, Frame frame) {
+        Shard shard = shardFor(room);
+        Room members;
+        long sequence;
+        synchronized (shard) {
+            members = shard.rooms.get(room);
+            if (members == null) {
+                return 0;
+            }
+            sequence = ++members.published;
+            if (log != null) {
+                log.append(room, frame);
+            }
+        }
+        long start = System.nanoTime();
+        int recipients = 0;
+        for (Map.Entry<Outbox, Long> member : members.subscribers.entrySet()) {
+            // Subscribers that joined after this message get it from the log.
+            if (member.getValue() < sequence) {
+                member.getKey().offer(frame.retain());
+                recipients++;
+            }
+        }
+        Metrics.SERVER.fanOut(System.nanoTime() - start);
+        return recipients;
+    }
+
+    /**
+     * Stops relaying and flushes and closes the message log, if there is one.
+     *
+     * @throws InterruptedException If interrupted while waiting for the log.
+     */
+    public void close() throws InterruptedException {
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private Shard shardFor(String room) {
+        int h = room.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    /**
+     * One room: its subscribers, each with the number of messages published
+     * before it joined.
+     */
+    private static class Room {
+        private final Map<Outbox, Long> subscribers = new ConcurrentHashMap<>();
+        // Guarded by the shard lock.
+        private long published;
+    }
+
+    /**
+     * One lock stripe: the rooms whose names hash to it.
+     */
+    private static class Shard {
+        private final Map<String, Room> rooms = new HashMap<>();
+    }
+}
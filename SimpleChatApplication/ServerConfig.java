@@ -0,0 +1,348 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Startup options for the chat server.
+ * Options are passed on the command line as {@code --name=value} pairs, for
+ * example {@code java ChatServer --mode=nio --event-loops=4}.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class ServerConfig {
+
+    /**
+     * The ways the server can run its client connections.
+     */
+    public enum Mode {
+        /** One platform thread per connection (the original behaviour). */
+        THREAD,
+        /** One virtual thread per connection (Java 21+), blocking code unchanged. */
+        VIRTUAL,
+        /** Non-blocking sockets multiplexed over a few selector threads. */
+        NIO
+    }
+
+    private int port = 12345;
+    private Mode mode = Mode.THREAD;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int highWatermark = 1024;
+    private int lowWatermark = 512;
+    private Outbox.OverflowPolicy overflowPolicy = Outbox.OverflowPolicy.DROP_NEWEST;
+    private int roomShards = 64;
+    private int batchWindowMillis = 0;
+    private int batchBytes = 64 * 1024;
+    private String logDir;
+    private int logSegmentMegabytes = 64;
+    private int replayCount = 20;
+    private int adminPort = 0;
+    private int compressionLevel = 1;
+    private int messageRate = 50;
+    private int byteRate = 64 * 1024;
+    private int heartbeatMillis = 30_000;
+    private int idleTimeoutMillis = 90_000;
+    private int shutdownTimeoutMillis = 5_000;
+    // Unique per process unless configured, so hosts on the same port and
+    // restarted nodes are never taken for each other.
+    private String nodeId = "node-" + UUID.randomUUID();
+    private int relayPort = 0;
+    private String relayBind = "127.0.0.1";
+    private List<InetSocketAddress> peers = List.of();
+
+    /**
+     * Parses the command-line arguments into a configuration.
+     *
+     * @param args Command-line arguments.
+     * @return The parsed configuration.
+     * @throws IllegalArgumentException If an option is unknown or malformed.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+            String value = eq < 0 ? "true" : arg.substring(eq + 1);
+            config.set(name, value);
+        }
+        if (config.lowWatermark > config.highWatermark) {
+            throw new IllegalArgumentException("--low-watermark must not exceed --high-watermark");
+        }
+        if (config.heartbeatMillis > 0 && config.idleTimeoutMillis > 0
+                && config.idleTimeoutMillis <= config.heartbeatMillis) {
+            throw new IllegalArgumentException("--idle-timeout-ms must exceed --heartbeat-ms");
+        }
+        if (!config.peers.isEmpty() && config.relayPort == 0) {
+            throw new IllegalArgumentException("--peers needs --relay-port");
+        }
+        return config;
+    }
+
+    /**
+     * Applies a single option.
+     *
+     * @param name  The option name without the leading dashes.
+     * @param value The option value.
+     */
+    private void set(String name, String value) {
+        switch (name) {
+            case "port":
+                port = parseInt(name, value, 0);
+                break;
+            case "mode":
+                mode = parseMode(value);
+                break;
+            case "nio":
+                mode = Mode.NIO;
+                break;
+            case "event-loops":
+                eventLoops = parseInt(name, value, 1);
+                break;
+            case "high-watermark":
+                highWatermark = parseInt(name, value, 1);
+                break;
+            case "low-watermark":
+                lowWatermark = parseInt(name, value, 0);
+                break;
+            case "overflow-policy":
+                overflowPolicy = parsePolicy(value);
+                break;
+            case "room-shards":
+                roomShards = parseInt(name, value, 1);
+                // Rounded up to a power of two, which must fit an int.
+                if (roomShards > 1 << 30) {
+                    throw new IllegalArgumentException("--room-shards must be at most " + (1 << 30));
+                }
+                break;
+            case "batch-window-ms":
+                batchWindowMillis = parseInt(name, value, 0);
+                break;
+            case "batch-bytes":
+                batchBytes = parseInt(name, value, 1);
+                break;
+            case "log-dir":
+                logDir = value;
+                break;
+            case "log-segment-mb":
+                logSegmentMegabytes = parseInt(name, value, 1);
+                if (logSegmentMegabytes > 1024) {
+                    throw new IllegalArgumentException("--log-segment-mb must be at most 1024");
+                }
+                break;
+            case "replay":
+                replayCount = parseInt(name, value, 0);
+                break;
+            case "admin-port":
+                adminPort = parseInt(name, value, 0);
+                break;
+            case "compression-level":
+                compressionLevel = parseInt(name, value, 0);
+                if (compressionLevel > 9) {
+                    throw new IllegalArgumentException("--compression-level must be at most 9");
+                }
+                break;
+            case "message-rate":
+                messageRate = parseInt(name, value, 0);
+                break;
+            case "byte-rate":
+                byteRate = parseInt(name, value, 0);
+                break;
+            case "heartbeat-ms":
+                heartbeatMillis = parseInt(name, value, 0);
+                break;
+            case "idle-timeout-ms":
+                idleTimeoutMillis = parseInt(name, value, 0);
+                break;
+            case "shutdown-timeout-ms":
+                shutdownTimeoutMillis = parseInt(name, value, 0);
+                break;
+            case "node-id":
+                nodeId = value;
+                break;
+            case "relay-port":
+                relayPort = parseInt(name, value, 0);
+                break;
+            case "relay-bind":
+                relayBind = value;
+                break;
+            case "peers":
+                peers = parsePeers(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    private static Mode parseMode(String value) {
+        try {
+            return Mode.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown mode: " + value);
+        }
+    }
+
+    private static Outbox.OverflowPolicy parsePolicy(String value) {
+        try {
+            return Outbox.OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown overflow policy: " + value);
+        }
+    }
+
+    private static List<InetSocketAddress> parsePeers(String value) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("--peers expects host:port pairs, got: " + peer);
+            }
+            peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                    parseInt("peers", peer.substring(colon + 1), 1)));
+        }
+        return peers;
+    }
+
+    private static int parseInt(String name, String value, int min) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < min) {
+                throw new IllegalArgumentException("--" + name + " must be at least " + min);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " expects a number, got: " + value);
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public Outbox.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getRoomShards() {
+        return roomShards;
+    }
+
+    public long getBatchWindowNanos() {
+        return batchWindowMillis * 1_000_000L;
+    }
+
+    public int getBatchBytes() {
+        return batchBytes;
+    }
+
+    public String getLogDir() {
+        return logDir;
+    }
+
+    public int getLogSegmentBytes() {
+        return logSegmentMegabytes * 1024 * 1024;
+    }
+
+    public int getReplayCount() {
+        return replayCount;
+    }
+
+    public int getAdminPort() {
+        return adminPort;
+    }
+
+    /**
+     * Gets this node's name in a cluster.
+     *
+     * @return The configured node id, or a random one chosen at startup.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getRelayPort() {
+        return relayPort;
+    }
+
+    public String getRelayBind() {
+        return relayBind;
+    }
+
+    public List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    /**
+     * Gets the deflate level for clients that ask for compression.
+     *
+     * @return 1 to 9, or 0 if compression is refused.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Gets the messages per second each client may send.
+     *
+     * @return The limit, or 0 for none.
+     */
+    public int getMessageRate() {
+        return messageRate;
+    }
+
+    /**
+     * Gets the bytes of messages per second each client may send.
+     *
+     * @return The limit, or 0 for none.
+     */
+    public int getByteRate() {
+        return byteRate;
+    }
+
+    /**
+     * Gets how long a client may be quiet before it is sent a {@code PING}.
+     *
+     * @return The period in nanoseconds, or 0 if clients are not pinged.
+     */
+    public long getHeartbeatNanos() {
+        return heartbeatMillis * 1_000_000L;
+    }
+
+    /**
+     * Gets how long a client may be quiet before it is disconnected.
+     *
+     * @return The timeout in nanoseconds, or 0 if idle clients are kept.
+     */
+    public long getIdleTimeoutNanos() {
+        return idleTimeoutMillis * 1_000_000L;
+    }
+
+    /**
+     * Gets how long a shutdown waits for queued frames to be written before
+     * closing the remaining connections.
+     *
+     * @return The deadline in nanoseconds.
+     */
+    public long getShutdownTimeoutNanos() {
+        return shutdownTimeoutMillis * 1_000_000L;
+    }
+}
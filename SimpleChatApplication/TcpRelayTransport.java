@@ -0,0 +1,228 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link RelayTransport} over plain TCP connections, one to each peer.
+ * Every node listens on its relay port and connects out to every peer, so
+ * a cluster is a full mesh and a message reaches each node in one hop.
+ * Several nodes can run on one machine on different ports.
+ * <p>
+ * Each message is encoded once and queued for every peer. A peer's sender
+ * thread writes whatever has queued up in one flush, and reconnects with
+ * exponential backoff when the connection fails; messages queued for a
+ * peer that is down are dropped once its queue is full.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class TcpRelayTransport implements RelayTransport {
+    // Messages queued per peer before new ones are dropped.
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+    // Largest payload accepted from a peer.
+    private static final int MAX_PAYLOAD = BinaryProtocol.MAX_PAYLOAD;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final InetSocketAddress address;
+    private final List<Peer> peers = new ArrayList<>();
+    private final LongAdder dropped = new LongAdder();
+    private ServerSocket server;
+    private Listener listener;
+    private volatile boolean closed;
+
+    /**
+     * Creates a transport.
+     *
+     * @param address The address to listen on for other nodes.
+     * @param peers   The relay addresses of the other nodes; they may be
+     *                unresolved.
+     */
+    public TcpRelayTransport(InetSocketAddress address, List<InetSocketAddress> peers) {
+        this.address = address;
+        for (InetSocketAddress peer : peers) {
+            this.peers.add(new Peer(peer));
+        }
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        server = new ServerSocket();
+        server.bind(address);
+        daemon(this::acceptLoop, "chat-relay-accept").start();
+        for (Peer peer : peers) {
+            peer.thread.start();
+        }
+    }
+
+    @Override
+    public void send(Message message) {
+        byte[] encoded;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + message.payload.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(message.origin);
+            out.writeLong(message.id);
+            out.writeUTF(message.room);
+            out.writeByte(message.type);
+            out.writeInt(message.payload.length);
+            out.write(message.payload);
+            encoded = bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not encode relay message", e);
+        }
+        for (Peer peer : peers) {
+            if (!peer.queue.offer(encoded)) {
+                dropped.increment();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        for (Peer peer : peers) {
+            peer.thread.interrupt();
+        }
+    }
+
+    /**
+     * Gets the number of messages dropped because a peer's queue was full.
+     *
+     * @return The dropped message count.
+     */
+    public long droppedMessages() {
+        return dropped.sum();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                daemon(() -> readLoop(socket), "chat-relay-in").start();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Relay accept error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads messages from one inbound connection until it closes.
+     */
+    private void readLoop(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (!closed) {
+                String origin;
+                try {
+                    origin = in.readUTF();
+                } catch (EOFException e) {
+                    return;
+                }
+                long id = in.readLong();
+                String room = in.readUTF();
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_PAYLOAD) {
+                    throw new IOException("Bad relay payload length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                listener.onMessage(new Message(origin, id, room, type, payload));
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Relay read error from " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * One outbound connection and the messages waiting for it.
+     */
+    private class Peer {
+        private final InetSocketAddress address;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Thread thread;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+            this.thread = daemon(this::sendLoop, "chat-relay-out-" + address.getPort());
+        }
+
+        private String name() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+
+        /**
+         * Connects, writes queued messages in batches and reconnects with
+         * backoff whenever the connection fails.
+         */
+        private void sendLoop() {
+            long backoff = MIN_BACKOFF_MILLIS;
+            boolean reported = false;
+            while (!closed) {
+                try (Socket socket = new Socket()) {
+                    // Resolve on every attempt, in case the peer has moved.
+                    socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()),
+                            (int) MAX_BACKOFF_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    System.out.println("Relay connected to " + name());
+                    backoff = MIN_BACKOFF_MILLIS;
+                    reported = false;
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                    while (!closed) {
+                        out.write(queue.take());
+                        byte[] next;
+                        while ((next = queue.poll()) != null) {
+                            out.write(next);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    if (!reported) {
+                        System.out.println("Relay to " + name() + " unavailable: " + e.getMessage());
+                        reported = true;
+                    }
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * A token bucket rate limiter. Tokens accrue at a fixed rate up to the
+ * bucket's capacity, and each event takes as many tokens as it costs, so a
+ * client can burst up to the capacity and is then held to the rate.
+ * <p>
+ * An event that costs more than the whole capacity would never fit, so it
+ * is let through whenever the bucket is full and leaves it in debt. That
+ * way a single long line is allowed, but nothing else until it is paid
+ * for.
+ * <p>
+ * A bucket is not thread-safe. Each connection's buckets are only used by
+ * the thread reading its lines.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param perSecond The tokens added per second.
+     * @param capacity  The most tokens the bucket holds.
+     */
+    public TokenBucket(long perSecond, long capacity) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Checks whether there are enough tokens for an event, without taking
+     * them, so that several buckets can be checked before any is charged.
+     *
+     * @param cost The tokens the event costs.
+     * @param now  The current {@link System#nanoTime()}.
+     * @return True if the event would be allowed.
+     */
+    public boolean canTake(long cost, long now) {
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        return tokens >= Math.min(cost, capacity);
+    }
+
+    /**
+     * Takes tokens for an event that {@link #canTake} allowed.
+     *
+     * @param cost The tokens the event costs.
+     */
+    public void take(long cost) {
+        tokens -= cost;
+    }
+}
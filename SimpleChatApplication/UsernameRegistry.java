@@ -0,0 +1,42 @@
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The usernames in use on this server. Names are compared without regard
+ * to case, so {@code Alice} and {@code alice} cannot both be connected.
+ * Claiming and releasing a name are single operations on a concurrent map,
+ * so logins on different threads never wait on a shared lock.
+ * <p>
+ * In a cluster, each node only knows its own clients' names.
+ *
+ * @author Darshil
+ * @version 1.0
+ */
+public class UsernameRegistry {
+    private final ConcurrentHashMap<String, ChatSession> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Claims a username for a session.
+     *
+     * @param username The requested name.
+     * @param session  The session asking for it.
+     * @return False if another session already has the name.
+     */
+    public boolean register(String username, ChatSession session) {
+        return sessions.putIfAbsent(key(username), session) == null;
+    }
+
+    /**
+     * Releases a username, if the session still holds it.
+     *
+     * @param username The name.
+     * @param session  The session that claimed it.
+     */
+    public void unregister(String username, ChatSession session) {
+        sessions.remove(key(username), session);
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}